@@ -0,0 +1,76 @@
+package filesynctm.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@code ClientHandler.appendToStackedChange} against the number of connected clients. Every
+ * operation also drains the stacked changes, as the clients' STACKED_CHANGES polls would, so the lists
+ * stay at their steady-state size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dfilesync.logLevel=ERROR"})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    private Socket socket;
+    private Object clientHandler;
+    private List<Object> otherClients;
+    private Method appendToStackedChange;
+    private Method drainStackedChanges;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        socket = Loopback.connectedSocket();
+
+        Object server = App.newInstance("Server", new Class<?>[]{int.class}, 0);
+        Map<Integer, Object> clientSockets = (Map<Integer, Object>) App.invoke(App.method("Server", "getClients"), server);
+
+        Class<?>[] clientSocketObjectParameters = {int.class, Socket.class};
+        Object clientSocketObject = App.newInstance("ClientSocketObject", clientSocketObjectParameters, 0, socket);
+        clientSockets.put(0, clientSocketObject);
+
+        otherClients = new ArrayList<>();
+        for (int id = 1; id <= clients; id++) {
+            Object otherClient = App.newInstance("ClientSocketObject", clientSocketObjectParameters, id, null);
+            clientSockets.put(id, otherClient);
+            otherClients.add(otherClient);
+        }
+
+        String serverDirectory = Files.createTempDirectory("filesynctm-fanout").toString();
+        clientHandler = App.newInstance("ClientHandler",
+                new Class<?>[]{App.type("ClientSocketObject"), App.type("Server"), String.class},
+                clientSocketObject, server, serverDirectory);
+
+        appendToStackedChange = App.method("ClientHandler", "appendToStackedChange", String.class, long.class, String.class);
+        drainStackedChanges = App.method("ClientSocketObject", "drainStackedChanges");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        socket.close();
+    }
+
+    @Benchmark
+    public void fanOut(Blackhole blackhole) {
+        App.invoke(appendToStackedChange, clientHandler, "DOWNLOAD", 1L, "folder/file.txt");
+
+        for (Object otherClient : otherClients) {
+            blackhole.consume(App.invoke(drainStackedChanges, otherClient));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package filesynctm.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every recorded latency, so percentiles are exact. A run of a few million propagations costs a
+ * few tens of megabytes.
+ */
+final class LatencyRecorder {
+    private long[] nanos = new long[1024];
+    private int count;
+
+    synchronized void record(long latencyNanos) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+
+        nanos[count++] = latencyNanos;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the given percentiles (0-100) in milliseconds, or zeros when nothing was recorded.
+     */
+    synchronized double[] getPercentilesMillis(double... percentiles) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+
+        double[] millis = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length && count > 0; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * count);
+            millis[i] = sorted[Math.max(0, Math.min(count, rank) - 1)] / 1_000_000.0;
+        }
+
+        return millis;
+    }
+}
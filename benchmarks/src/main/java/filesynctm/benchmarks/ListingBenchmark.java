@@ -0,0 +1,86 @@
+package filesynctm.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full directory scans as done for LIST on the server ({@code ClientHandler.getFiles}) and for change
+ * detection on the client ({@code ServerThread.getClientFiles}). With {@code ignore} set, the tree gets
+ * that rule in both the client's .syncignore and the server's .serverignore; the default excludes 90% of
+ * the second-level folders, so either scan should cost about a tenth of the unfiltered one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dfilesync.logLevel=ERROR"})
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListingBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"", "d[1-9]?/"})
+    public String ignore;
+
+    private File root;
+    private Object clientHandler;
+    private Object serverThread;
+    private Method getFiles;
+    private Method getClientFiles;
+    private Socket serverSocket;
+    private Socket clientSocket;
+    private File[] ignoreFiles;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = SyntheticTree.create(entries);
+        String directory = root.getPath() + File.separator;
+
+        ignoreFiles = new File[]{new File(root, ".syncignore"), new File(root, ".serverignore")};
+        for (File ignoreFile : ignoreFiles) {
+            if (ignore.isEmpty()) {
+                Files.deleteIfExists(ignoreFile.toPath());
+            } else {
+                Files.write(ignoreFile.toPath(), ignore.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        serverSocket = Loopback.connectedSocket();
+        clientSocket = Loopback.connectedSocket();
+
+        Object server = App.newInstance("Server", new Class<?>[]{int.class}, 0);
+        Object clientSocketObject = App.newInstance("ClientSocketObject", new Class<?>[]{int.class, Socket.class}, 1, serverSocket);
+        clientHandler = App.newInstance("ClientHandler",
+                new Class<?>[]{App.type("ClientSocketObject"), App.type("Server"), String.class},
+                clientSocketObject, server, directory);
+        serverThread = App.newInstance("ServerThread", new Class<?>[]{Socket.class, String.class}, clientSocket, directory);
+
+        getFiles = App.method("ClientHandler", "getFiles", File.class);
+        getClientFiles = App.method("ServerThread", "getClientFiles", File.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        clientSocket.close();
+        for (File ignoreFile : ignoreFiles) {
+            Files.deleteIfExists(ignoreFile.toPath());
+        }
+    }
+
+    @Benchmark
+    public Object serverGetFiles() {
+        return App.invoke(getFiles, clientHandler, root);
+    }
+
+    @Benchmark
+    public Object clientGetClientFiles() {
+        return App.invoke(getClientFiles, serverThread, root);
+    }
+}
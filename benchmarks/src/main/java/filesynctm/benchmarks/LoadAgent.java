@@ -0,0 +1,38 @@
+package filesynctm.benchmarks;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hosts simulated clients in a separate process for the load generator's out-of-process mode.
+ * Usage: LoadAgent &lt;host&gt; &lt;port&gt; &lt;directory&gt;... Prints READY once all clients are started and runs
+ * until its standard input is closed.
+ */
+public class LoadAgent {
+    public static void main(String[] args) throws IOException {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<SimulatedClient> clients = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            clients.add(SimulatedClient.start(host, port, new File(args[i])));
+        }
+
+        console.println("READY");
+        console.flush();
+
+        while (System.in.read() != -1) {
+            // Wait for the load generator to close our input.
+        }
+
+        for (SimulatedClient client : clients) {
+            client.stop();
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,391 @@
+package filesynctm.benchmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator and soak harness. Starts a server and N sync clients on loopback, replays a
+ * workload through the first few clients and measures how long every write or delete takes to appear
+ * in all other clients' directories. Server CPU, heap and threads are sampled throughout, so the same
+ * tool runs a 90 second smoke test or a multi-hour soak.
+ * <p>
+ * Output, in the --out directory: report.json (propagation latency percentiles and counts), soak.csv
+ * (one row of server stats per sample interval) and server.log (when the server is a child process).
+ */
+public class LoadGenerator {
+    private final LoadOptions options;
+    private final PrintStream console;
+    private final List<SimulatedClient> clients;
+    private final List<Process> agents;
+    private Process serverProcess;
+    private Object inProcessServer;
+
+    LoadGenerator(LoadOptions options, PrintStream console) {
+        this.options = options;
+        this.console = console;
+        this.clients = new ArrayList<>();
+        this.agents = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadOptions options = LoadOptions.parse(args);
+
+        // The application logs every transfer to System.out; keep the console for our own progress lines.
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        new LoadGenerator(options, console).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        File outputDirectory = new File(options.out).getAbsoluteFile();
+        Loopback.deleteRecursively(new File(outputDirectory, "clients"));
+        Loopback.deleteRecursively(new File(outputDirectory, "server"));
+        outputDirectory.mkdirs();
+
+        List<File> clientDirectories = new ArrayList<>();
+        for (int i = 0; i < options.clients; i++) {
+            File clientDirectory = new File(outputDirectory, "clients" + File.separator + "c" + i);
+            clientDirectory.mkdirs();
+            clientDirectories.add(clientDirectory);
+        }
+
+        try {
+            startServer(outputDirectory);
+            startClients(clientDirectories);
+
+            List<java.nio.file.Path> paths = new ArrayList<>();
+            for (File clientDirectory : clientDirectories) {
+                paths.add(clientDirectory.toPath());
+            }
+
+            try (PropagationTracker tracker = new PropagationTracker(paths);
+                 SoakSampler sampler = new SoakSampler(options.host, options.port, new File(outputDirectory, "soak.csv"))) {
+                Workload workload = Workload.create(options.workload, clientDirectories.subList(0, options.writers), tracker, options);
+                runWorkload(workload, tracker, sampler);
+                writeReport(new File(outputDirectory, "report.json"), tracker);
+            }
+        } finally {
+            stopClients();
+            stopServer();
+        }
+    }
+
+    private void runWorkload(Workload workload, PropagationTracker tracker, SoakSampler sampler) throws Exception {
+        console.printf("Preparing %s with %d clients (%d writing)%n", options.workload, options.clients, options.writers);
+        workload.prepare();
+        awaitPropagation(tracker, options.warmupMillis);
+        tracker.startMeasuring();
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        long startMillis = System.currentTimeMillis();
+        long[] nextReportMillis = {startMillis};
+
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                workload.step();
+            } catch (IOException | RuntimeException e) {
+                console.println("Workload step failed: " + e);
+            }
+        }, 0, Math.max(1, (long) (1_000_000_000L / options.rate)), TimeUnit.NANOSECONDS);
+
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                Map<String, String> stats = sampler.sample();
+                if (System.currentTimeMillis() >= nextReportMillis[0]) {
+                    nextReportMillis[0] += options.reportIntervalMillis;
+                    printProgress(startMillis, tracker, stats);
+                }
+            } catch (IOException | RuntimeException e) {
+                console.println("Sampling failed: " + e);
+            }
+        }, 0, options.sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(options.durationMillis);
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+
+        console.println("Workload finished, waiting for propagation to drain");
+        awaitPropagation(tracker, options.drainMillis);
+        sampler.sample();
+    }
+
+    private void awaitPropagation(PropagationTracker tracker, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (tracker.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+    }
+
+    private void printProgress(long startMillis, PropagationTracker tracker, Map<String, String> stats) {
+        double[] percentiles = tracker.getLatencies().getPercentilesMillis(50, 99);
+        console.printf(Locale.ROOT, "[%5ds] observed %d/%d, pending %d, p50 %.0f ms, p99 %.0f ms | server cpu %s, heap %s MB, threads %s%n",
+                (System.currentTimeMillis() - startMillis) / 1000,
+                tracker.getLatencies().getCount(), tracker.getExpectedCount(), tracker.getPendingCount(),
+                percentiles[0], percentiles[1],
+                stats.getOrDefault("process.cpuLoad", "?"),
+                Long.parseLong(stats.getOrDefault("jvm.heapUsedBytes", "0")) / (1024 * 1024),
+                stats.getOrDefault("jvm.threads", "?"));
+    }
+
+    private void writeReport(File reportFile, PropagationTracker tracker) throws IOException {
+        LatencyRecorder latencies = tracker.getLatencies();
+        double[] percentiles = latencies.getPercentilesMillis(50, 99, 99.9, 100);
+
+        String report = String.format(Locale.ROOT, "{%n"
+                        + "  \"workload\": \"%s\",%n"
+                        + "  \"clients\": %d,%n"
+                        + "  \"writers\": %d,%n"
+                        + "  \"clientProcesses\": %d,%n"
+                        + "  \"durationSeconds\": %d,%n"
+                        + "  \"rate\": %s,%n"
+                        + "  \"propagations\": {\"expected\": %d, \"observed\": %d, \"superseded\": %d, \"unobserved\": %d},%n"
+                        + "  \"latencyMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}%n"
+                        + "}%n",
+                options.workload, options.clients, options.writers, options.clientProcesses, options.durationMillis / 1000, options.rate,
+                tracker.getExpectedCount(), latencies.getCount(), tracker.getSupersededCount(), tracker.getPendingCount(),
+                percentiles[0], percentiles[1], percentiles[2], percentiles[3]);
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8)) {
+            writer.write(report);
+        }
+
+        console.print(report);
+        console.println("Report written to " + reportFile);
+    }
+
+    private void startServer(File outputDirectory) throws Exception {
+        if (options.externalServer) {
+            return;
+        }
+
+        String serverDirectory = new File(outputDirectory, "server").getAbsolutePath() + File.separator;
+        new File(serverDirectory).mkdirs();
+
+        if (options.inProcessServer) {
+            inProcessServer = Loopback.startServer(options.port, serverDirectory);
+            return;
+        }
+
+        // A separate JVM, so the sampled CPU, heap and thread counts belong to the server alone.
+        List<String> command = javaCommand("Server");
+        command.add("--port");
+        command.add(String.valueOf(options.port));
+        command.add("--dir");
+        command.add(serverDirectory);
+
+        serverProcess = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(outputDirectory, "server.log"))
+                .start();
+        Loopback.awaitPort(options.host, options.port, 30_000);
+    }
+
+    private void startClients(List<File> clientDirectories) throws Exception {
+        if (options.clientProcesses == 0) {
+            for (File clientDirectory : clientDirectories) {
+                clients.add(SimulatedClient.start(options.host, options.port, clientDirectory));
+            }
+        } else {
+            for (int agent = 0; agent < options.clientProcesses; agent++) {
+                List<String> command = javaCommand(LoadAgent.class.getName());
+                command.add(options.host);
+                command.add(String.valueOf(options.port));
+                for (int i = agent; i < clientDirectories.size(); i += options.clientProcesses) {
+                    command.add(clientDirectories.get(i).getAbsolutePath());
+                }
+
+                Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                agents.add(process);
+
+                String line = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                if (!"READY".equals(line)) {
+                    throw new IOException("Load agent " + agent + " failed to start: " + line);
+                }
+            }
+        }
+
+        // Let every client finish its initial comparison with the server before files start changing.
+        Thread.sleep(1000);
+    }
+
+    private void stopClients() {
+        for (SimulatedClient client : clients) {
+            client.stop();
+        }
+
+        for (Process agent : agents) {
+            try {
+                agent.getOutputStream().close();
+                if (!agent.waitFor(10, TimeUnit.SECONDS)) {
+                    agent.destroyForcibly();
+                }
+            } catch (IOException | InterruptedException e) {
+                agent.destroyForcibly();
+            }
+        }
+    }
+
+    private void stopServer() {
+        if (serverProcess != null) {
+            serverProcess.destroy();
+        }
+
+        if (inProcessServer != null) {
+            App.invoke(App.method("Server", "stop"), inProcessServer);
+        }
+    }
+
+    /**
+     * Builds a command line for a child JVM on our class path, passing on the application's filesync.*
+     * settings.
+     */
+    private static List<String> javaCommand(String mainClass) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("filesync.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        return command;
+    }
+}
+
+/**
+ * Command line options of the {@link LoadGenerator}, e.g.
+ * {@code --clients 20 --writers 2 --workload small-churn --rate 50 --duration 2h --client-processes 4}.
+ */
+class LoadOptions {
+    int clients = 10;
+    int writers = 1;
+    String workload = "small-churn";
+    double rate = 10;
+    long durationMillis = 90_000;
+    long warmupMillis = 30_000;
+    long drainMillis = 30_000;
+    long sampleIntervalMillis = 5_000;
+    long reportIntervalMillis = 10_000;
+    int files = 100;
+    long smallSize = 2048;
+    long largeSize = 64 * 1024 * 1024;
+    int batch = 500;
+    int clientProcesses = 0;
+    long seed = 42;
+    String host = "localhost";
+    int port;
+    boolean externalServer;
+    boolean inProcessServer;
+    String out = "loadgen";
+
+    static LoadOptions parse(String[] args) throws IOException {
+        LoadOptions options = new LoadOptions();
+        options.port = Loopback.freePort();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    options.clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--writers":
+                    options.writers = Integer.parseInt(args[++i]);
+                    break;
+                case "--workload":
+                    options.workload = args[++i];
+                    break;
+                case "--rate":
+                    options.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--duration":
+                    options.durationMillis = parseDuration(args[++i]);
+                    break;
+                case "--warmup":
+                    options.warmupMillis = parseDuration(args[++i]);
+                    break;
+                case "--drain":
+                    options.drainMillis = parseDuration(args[++i]);
+                    break;
+                case "--sample-interval":
+                    options.sampleIntervalMillis = parseDuration(args[++i]);
+                    break;
+                case "--report-interval":
+                    options.reportIntervalMillis = parseDuration(args[++i]);
+                    break;
+                case "--files":
+                    options.files = Integer.parseInt(args[++i]);
+                    break;
+                case "--small-size":
+                    options.smallSize = parseSize(args[++i]);
+                    break;
+                case "--large-size":
+                    options.largeSize = parseSize(args[++i]);
+                    break;
+                case "--batch":
+                    options.batch = Integer.parseInt(args[++i]);
+                    break;
+                case "--client-processes":
+                    options.clientProcesses = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    options.seed = Long.parseLong(args[++i]);
+                    break;
+                case "--server":
+                    String[] address = args[++i].split(":");
+                    options.host = address[0];
+                    options.port = Integer.parseInt(address[1]);
+                    options.externalServer = true;
+                    break;
+                case "--in-process-server":
+                    options.inProcessServer = true;
+                    break;
+                case "--out":
+                    options.out = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (options.clients < 2 || options.writers < 1 || options.writers >= options.clients) {
+            throw new IllegalArgumentException("Need at least one writer and one observing client");
+        }
+
+        return options;
+    }
+
+    /**
+     * Parses durations like 500ms, 90s, 10m or 2h; a bare number is seconds.
+     */
+    static long parseDuration(String value) {
+        if (value.endsWith("ms")) {
+            return Long.parseLong(value.substring(0, value.length() - 2));
+        }
+
+        char unit = value.charAt(value.length() - 1);
+        long multiplier = unit == 'h' ? 3_600_000 : unit == 'm' ? 60_000 : 1000;
+        String number = Character.isDigit(unit) ? value : value.substring(0, value.length() - 1);
+        return Long.parseLong(number) * multiplier;
+    }
+
+    /**
+     * Parses sizes like 2048, 4k or 64m.
+     */
+    static long parseSize(String value) {
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        long multiplier = unit == 'g' ? 1 << 30 : unit == 'm' ? 1 << 20 : unit == 'k' ? 1 << 10 : 1;
+        String number = Character.isDigit(unit) ? value : value.substring(0, value.length() - 1);
+        return Long.parseLong(number) * multiplier;
+    }
+}
@@ -0,0 +1,76 @@
+package filesynctm.benchmarks;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback sockets for constructing the application's connection classes without a running peer.
+ */
+final class Loopback {
+    private Loopback() {
+    }
+
+    /**
+     * Opens a connected socket whose peer has already written an object stream header, since the
+     * application classes create an ObjectInputStream, which blocks until it reads one.
+     */
+    static Socket connectedSocket() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            Socket peer = serverSocket.accept();
+            new ObjectOutputStream(peer.getOutputStream()).flush();
+            return socket;
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a {@code Server} on a free loopback port in a daemon thread and waits until it accepts
+     * connections.
+     */
+    static Object startServer(int port, String serverDirectory) throws IOException, InterruptedException {
+        Object server = App.newInstance("Server", new Class<?>[]{int.class}, port);
+        Thread thread = new Thread(() -> App.invoke(App.method("Server", "start", String.class), server, serverDirectory));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitPort("localhost", port, 5000);
+        return server;
+    }
+
+    /**
+     * Waits until something accepts connections on the given port.
+     */
+    static void awaitPort(String host, int port, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try (Socket ignored = new Socket(host, port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start on port " + port);
+                }
+
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
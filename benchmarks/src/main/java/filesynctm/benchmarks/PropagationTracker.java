@@ -0,0 +1,236 @@
+package filesynctm.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long a write or delete in one client's directory takes to show up in every other
+ * client's directory. Written files start with a fixed-width version header, so an observer can tell
+ * which version arrived; the directories are watched with a single {@link WatchService}.
+ */
+final class PropagationTracker implements Closeable {
+    static final int HEADER_LENGTH = 40;
+    private static final String HEADER_PREFIX = "filesynctm-loadgen ";
+    private static final long SWEEP_INTERVAL_MILLIS = 500;
+    private final List<Path> directories;
+    private final WatchService watchService;
+    private final Map<WatchKey, Integer> clientsByKey;
+    private final Map<String, Expectation> expectations;
+    private volatile LatencyRecorder latencies;
+    private final AtomicLong expected;
+    private final AtomicLong superseded;
+    private final AtomicLong version;
+    private final Thread watcherThread;
+
+    PropagationTracker(List<Path> directories) throws IOException {
+        this.directories = directories;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.clientsByKey = new ConcurrentHashMap<>();
+        this.expectations = new ConcurrentHashMap<>();
+        this.latencies = new LatencyRecorder();
+        this.expected = new AtomicLong();
+        this.superseded = new AtomicLong();
+        this.version = new AtomicLong();
+
+        for (int client = 0; client < directories.size(); client++) {
+            WatchKey watchKey = directories.get(client).register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            clientsByKey.put(watchKey, client);
+        }
+
+        this.watcherThread = new Thread(this::watch, "propagation-tracker");
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * Registers a new version of the file before the writer writes it, and returns the header to write.
+     */
+    byte[] expectWrite(int writer, String filename) {
+        long fileVersion = version.incrementAndGet();
+        expect(writer, filename, new Expectation(fileVersion, System.nanoTime(), otherClients(writer)));
+        return String.format("%s%020d\n", HEADER_PREFIX, fileVersion).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Registers a delete before the writer performs it. Observers that never got the file have nothing
+     * to delete; they are counted as superseded rather than as deliveries that took no time.
+     */
+    void expectDelete(int writer, String filename) {
+        Set<Integer> observers = otherClients(writer);
+        long missing = 0;
+        for (Integer client : otherClients(writer)) {
+            if (!Files.exists(directories.get(client).resolve(filename))) {
+                observers.remove(client);
+                missing++;
+            }
+        }
+
+        expected.addAndGet(missing);
+        superseded.addAndGet(missing);
+        expect(writer, filename, new Expectation(-1, System.nanoTime(), observers));
+    }
+
+    long getExpectedCount() {
+        return expected.get();
+    }
+
+    long getSupersededCount() {
+        return superseded.get();
+    }
+
+    long getPendingCount() {
+        long pending = 0;
+        for (Expectation expectation : expectations.values()) {
+            pending += expectation.remainingClients.size();
+        }
+
+        return pending;
+    }
+
+    /**
+     * Discards the latencies and counts recorded so far, e.g. those of the warmup.
+     */
+    void startMeasuring() {
+        latencies = new LatencyRecorder();
+        expected.set(0);
+        superseded.set(0);
+    }
+
+    LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcherThread.interrupt();
+        watchService.close();
+    }
+
+    private void expect(int writer, String filename, Expectation expectation) {
+        expected.addAndGet(expectation.remainingClients.size());
+
+        // A newer version replaces one that has not reached everyone yet; those observers will only see the new one.
+        Expectation previous = expectations.put(filename, expectation);
+        if (previous != null) {
+            superseded.addAndGet(previous.remainingClients.size());
+        }
+
+        if (expectation.remainingClients.isEmpty()) {
+            expectations.remove(filename, expectation);
+        }
+    }
+
+    private Set<Integer> otherClients(int writer) {
+        Set<Integer> clients = ConcurrentHashMap.newKeySet();
+        for (int client = 0; client < directories.size(); client++) {
+            if (client != writer) {
+                clients.add(client);
+            }
+        }
+
+        return clients;
+    }
+
+    private void watch() {
+        long nextSweepNanos = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.poll(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (System.nanoTime() >= nextSweepNanos) {
+                sweep();
+                nextSweepNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+            }
+
+            if (watchKey == null) {
+                continue;
+            }
+
+            int client = clientsByKey.get(watchKey);
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    sweep();
+                } else {
+                    check(client, event.context().toString());
+                }
+            }
+
+            watchKey.reset();
+        }
+    }
+
+    /**
+     * Checks every outstanding expectation in every directory. Catches lost events (overflow) and deletes
+     * of files that never reached an observer, which produce no event there.
+     */
+    private void sweep() {
+        for (String filename : expectations.keySet()) {
+            for (int client = 0; client < directories.size(); client++) {
+                check(client, filename);
+            }
+        }
+    }
+
+    private void check(int client, String filename) {
+        Expectation expectation = expectations.get(filename);
+        if (expectation == null || !expectation.remainingClients.contains(client)) {
+            return;
+        }
+
+        Path path = directories.get(client).resolve(filename);
+        boolean isArrived = expectation.version < 0
+                ? !Files.exists(path)
+                : readVersion(path) >= expectation.version;
+
+        if (isArrived && expectation.remainingClients.remove(client)) {
+            latencies.record(System.nanoTime() - expectation.startNanos);
+            if (expectation.remainingClients.isEmpty()) {
+                expectations.remove(filename, expectation);
+            }
+        }
+    }
+
+    private long readVersion(Path path) {
+        byte[] header = new byte[HEADER_LENGTH];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            if (inputStream.readNBytes(header, 0, HEADER_LENGTH) < HEADER_LENGTH) {
+                return -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+
+        String line = new String(header, StandardCharsets.US_ASCII);
+        if (!line.startsWith(HEADER_PREFIX)) {
+            return -1;
+        }
+
+        return Long.parseLong(line.substring(HEADER_PREFIX.length()).trim());
+    }
+
+    private static class Expectation {
+        private final long version;
+        private final long startNanos;
+        private final Set<Integer> remainingClients;
+
+        private Expectation(long version, long startNanos, Set<Integer> remainingClients) {
+            this.version = version;
+            this.startNanos = startNanos;
+            this.remainingClients = remainingClients;
+        }
+    }
+}
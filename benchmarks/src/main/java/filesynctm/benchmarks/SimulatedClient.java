@@ -0,0 +1,40 @@
+package filesynctm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A full sync client ({@code ServerThread} with its transfer pipeline) running in this JVM against a
+ * working directory.
+ */
+final class SimulatedClient {
+    private final Socket socket;
+    private final Object serverThread;
+
+    private SimulatedClient(Socket socket, Object serverThread) {
+        this.socket = socket;
+        this.serverThread = serverThread;
+    }
+
+    static SimulatedClient start(String host, int port, File directory) throws IOException {
+        Socket socket = new Socket(host, port);
+        Object serverThread = App.newInstance("ServerThread", new Class<?>[]{Socket.class, String.class},
+                socket, directory.getAbsolutePath() + File.separator);
+
+        Thread thread = new Thread((Runnable) serverThread, "client-" + directory.getName());
+        thread.setDaemon(true);
+        thread.start();
+
+        return new SimulatedClient(socket, serverThread);
+    }
+
+    void stop() {
+        App.invoke(App.method("ServerThread", "stopPipeline"), serverThread);
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
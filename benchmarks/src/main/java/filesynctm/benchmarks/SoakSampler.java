@@ -0,0 +1,83 @@
+package filesynctm.benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Polls the server's STATS command and appends one CSV row per sample, so CPU, heap, threads and
+ * backlog can be plotted over a multi-hour soak. The sampler is an ordinary client connection, so it
+ * drains its own stacked changes on every sample to keep them from growing for the whole run.
+ */
+final class SoakSampler implements Closeable {
+    private static final String[] COLUMNS = {
+            "process.cpuLoad", "jvm.heapUsedBytes", "jvm.threads", "connections.open", "clients.connected",
+            "transfers.inFlight", "stackedChanges.pending", "stackedChanges.maxPerClient",
+            "bytes.received.perSecond", "bytes.sent.perSecond", "log.dropped"
+    };
+    private final Socket socket;
+    private final ObjectOutputStream objectOutputStream;
+    private final ObjectInputStream objectInputStream;
+    private final PrintWriter csvWriter;
+    private final long startNanos;
+
+    SoakSampler(String host, int port, File csvFile) throws IOException {
+        this.socket = new Socket(host, port);
+        this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+        this.objectInputStream = new ObjectInputStream(socket.getInputStream());
+        this.csvWriter = new PrintWriter(new FileWriter(csvFile));
+        this.startNanos = System.nanoTime();
+
+        csvWriter.println("elapsedSeconds," + String.join(",", COLUMNS));
+        csvWriter.flush();
+    }
+
+    /**
+     * Takes one sample, writes it to the CSV file and returns it.
+     */
+    synchronized Map<String, String> sample() throws IOException {
+        Map<String, String> stats = new LinkedHashMap<>();
+        for (String line : request("STATS", "STATS_END")) {
+            int separator = line.indexOf(' ');
+            stats.put(line.substring(0, separator), line.substring(separator + 1));
+        }
+
+        request("STACKED_CHANGES", "STACKED_CHANGES_END");
+
+        StringBuilder row = new StringBuilder(String.valueOf((System.nanoTime() - startNanos) / 1_000_000_000L));
+        for (String column : COLUMNS) {
+            row.append(',').append(stats.getOrDefault(column, ""));
+        }
+
+        csvWriter.println(row);
+        csvWriter.flush();
+
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        csvWriter.close();
+        socket.close();
+    }
+
+    private List<String> request(String command, String endMarker) throws IOException {
+        objectOutputStream.writeObject(command);
+        objectOutputStream.writeObject("");
+        objectOutputStream.flush();
+
+        List<String> lines = new ArrayList<>();
+        try {
+            for (String line = (String) objectInputStream.readObject(); !line.equals(endMarker); line = (String) objectInputStream.readObject()) {
+                lines.add(line);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,44 @@
+package filesynctm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic working directories for the listing benchmarks: the given number of empty files, 100 per
+ * folder, in folders nested two levels deep. Trees are kept under jmh-trees/ in the working directory
+ * and reused across runs, since creating a million files takes longer than the benchmark itself.
+ */
+final class SyntheticTree {
+    private static final int FILES_PER_FOLDER = 100;
+
+    private SyntheticTree() {
+    }
+
+    static File create(int files) throws IOException {
+        File root = new File("jmh-trees", String.valueOf(files));
+        File marker = new File("jmh-trees", files + ".complete");
+        if (marker.exists()) {
+            return root.getAbsoluteFile();
+        }
+
+        Loopback.deleteRecursively(root);
+
+        for (int i = 0; i < files; i++) {
+            int folderIndex = i / FILES_PER_FOLDER;
+            File folder = new File(root, String.format("d%04d%sd%02d", folderIndex / 100, File.separator, folderIndex % 100));
+            if (i % FILES_PER_FOLDER == 0 && !folder.mkdirs()) {
+                throw new IOException("Could not create " + folder);
+            }
+
+            if (!new File(folder, "file-" + i + ".txt").createNewFile()) {
+                throw new IOException("Could not create file " + i + " in " + folder);
+            }
+        }
+
+        if (!marker.createNewFile()) {
+            throw new IOException("Could not create " + marker);
+        }
+
+        return root.getAbsoluteFile();
+    }
+}
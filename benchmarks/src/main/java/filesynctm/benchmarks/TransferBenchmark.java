@@ -0,0 +1,103 @@
+package filesynctm.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads and downloads of a single file between a {@code ServerThread} and an in-process {@code Server}
+ * over loopback, using the same code path as the client's transfer workers. An upload returns once the
+ * server confirms it stored the file, so the benchmark measures complete transfers rather than how fast
+ * the socket buffers fill. Besides operations per second, the {@code bytes} counter reports throughput
+ * in bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dfilesync.logLevel=ERROR"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+    private static final String FILENAME = "payload.bin";
+
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    private File serverDirectory;
+    private File clientDirectory;
+    private File downloadTarget;
+    private Object server;
+    private Socket socket;
+    private Object serverThread;
+    private ObjectOutputStream objectOutputStream;
+    private ObjectInputStream objectInputStream;
+    private Method uploadFile;
+    private Method downloadFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // The client prints a line for every transfer; keep that out of the measurements.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        serverDirectory = Files.createTempDirectory("filesynctm-server").toFile();
+        clientDirectory = Files.createTempDirectory("filesynctm-client").toFile();
+        downloadTarget = new File(clientDirectory, "download.bin");
+
+        byte[] payload = new byte[size];
+        new Random(42).nextBytes(payload);
+        Files.write(new File(clientDirectory, FILENAME).toPath(), payload);
+
+        int port = Loopback.freePort();
+        server = Loopback.startServer(port, serverDirectory.getPath() + File.separator);
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        serverThread = App.newInstance("ServerThread", new Class<?>[]{Socket.class, String.class},
+                socket, clientDirectory.getPath() + File.separator);
+        objectOutputStream = (ObjectOutputStream) App.field(serverThread, "objectOutputStream");
+        objectInputStream = (ObjectInputStream) App.field(serverThread, "objectInputStream");
+
+        uploadFile = App.method("ServerThread", "uploadFile", String.class, ObjectOutputStream.class, ObjectInputStream.class,
+                Socket.class, boolean.class);
+        downloadFile = App.method("ServerThread", "downloadFile", String.class, String.class, ObjectOutputStream.class, ObjectInputStream.class, File.class);
+
+        upload(new BytesCounter());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        socket.close();
+        App.invoke(App.method("Server", "stop"), server);
+        Loopback.deleteRecursively(serverDirectory);
+        Loopback.deleteRecursively(clientDirectory);
+    }
+
+    @Benchmark
+    public void upload(BytesCounter bytesCounter) {
+        App.invoke(uploadFile, serverThread, FILENAME, objectOutputStream, objectInputStream, socket, false);
+        bytesCounter.bytes += size;
+    }
+
+    @Benchmark
+    public void download(BytesCounter bytesCounter) {
+        App.invoke(downloadFile, serverThread, "DOWNLOAD", FILENAME, objectOutputStream, objectInputStream, downloadTarget);
+        bytesCounter.bytes += size;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class BytesCounter {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
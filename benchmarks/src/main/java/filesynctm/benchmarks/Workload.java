@@ -0,0 +1,204 @@
+package filesynctm.benchmarks;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A replayable file workload. Each writer client owns its own files, so writers never race each other
+ * on the same path, and every write and delete is announced to the {@link PropagationTracker} first.
+ */
+abstract class Workload {
+    private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+    protected final List<File> writerDirectories;
+    protected final PropagationTracker tracker;
+    protected final int files;
+    protected final Random random;
+
+    Workload(List<File> writerDirectories, PropagationTracker tracker, int files, long seed) {
+        this.writerDirectories = writerDirectories;
+        this.tracker = tracker;
+        this.files = files;
+        this.random = new Random(seed);
+    }
+
+    static Workload create(String name, List<File> writerDirectories, PropagationTracker tracker, LoadOptions options) {
+        switch (name) {
+            case "small-churn":
+                return new SmallFileChurn(writerDirectories, tracker, options.files, options.seed, options.smallSize);
+            case "large-edit":
+                return new LargeFileEdits(writerDirectories, tracker, options.files, options.seed, options.largeSize);
+            case "mass-delete":
+                return new MassDeletes(writerDirectories, tracker, options.files, options.seed, options.smallSize, options.batch);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    /**
+     * Creates the initial files, before the measured part of the run.
+     */
+    abstract void prepare() throws IOException;
+
+    /**
+     * Performs one operation; called at the configured rate from a single thread.
+     */
+    abstract void step() throws IOException;
+
+    protected String fileName(int writer, int index) {
+        return "w" + writer + "-f" + index + ".dat";
+    }
+
+    /**
+     * Writes the version header followed by random bytes up to the given size, a chunk at a time, so
+     * files larger than an array can hold work too.
+     */
+    protected void writeFile(int writer, int index, long size) throws IOException {
+        String filename = fileName(writer, index);
+        byte[] header = tracker.expectWrite(writer, filename);
+        byte[] chunk = new byte[(int) Math.min(WRITE_CHUNK_SIZE, Math.max(size, header.length))];
+
+        try (OutputStream outputStream = new FileOutputStream(new File(writerDirectories.get(writer), filename))) {
+            long remaining = Math.max(size, header.length);
+            boolean isFirstChunk = true;
+            while (remaining > 0) {
+                int length = (int) Math.min(chunk.length, remaining);
+                random.nextBytes(chunk);
+                if (isFirstChunk) {
+                    System.arraycopy(header, 0, chunk, 0, header.length);
+                    isFirstChunk = false;
+                }
+
+                outputStream.write(chunk, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    protected void deleteFile(int writer, int index) throws IOException {
+        String filename = fileName(writer, index);
+        tracker.expectDelete(writer, filename);
+        Files.deleteIfExists(new File(writerDirectories.get(writer), filename).toPath());
+    }
+}
+
+/**
+ * Many small files rewritten, deleted and recreated at random; the common editor/build-output pattern.
+ */
+class SmallFileChurn extends Workload {
+    private final long size;
+    private final boolean[][] exists;
+
+    SmallFileChurn(List<File> writerDirectories, PropagationTracker tracker, int files, long seed, long size) {
+        super(writerDirectories, tracker, files, seed);
+        this.size = size;
+        this.exists = new boolean[writerDirectories.size()][files];
+    }
+
+    @Override
+    void prepare() throws IOException {
+        for (int writer = 0; writer < writerDirectories.size(); writer++) {
+            for (int index = 0; index < files; index++) {
+                writeFile(writer, index, size);
+                exists[writer][index] = true;
+            }
+        }
+    }
+
+    @Override
+    void step() throws IOException {
+        int writer = random.nextInt(writerDirectories.size());
+        int index = random.nextInt(files);
+
+        if (exists[writer][index] && random.nextInt(10) == 0) {
+            deleteFile(writer, index);
+            exists[writer][index] = false;
+        } else {
+            writeFile(writer, index, size);
+            exists[writer][index] = true;
+        }
+    }
+}
+
+/**
+ * A few large files edited in place: a block somewhere in the file changes together with the version
+ * header, so every edit forces a full transfer of the file.
+ */
+class LargeFileEdits extends Workload {
+    private static final int EDIT_SIZE = 4096;
+    private final long size;
+
+    LargeFileEdits(List<File> writerDirectories, PropagationTracker tracker, int files, long seed, long size) {
+        super(writerDirectories, tracker, files, seed);
+        this.size = size;
+    }
+
+    @Override
+    void prepare() throws IOException {
+        for (int writer = 0; writer < writerDirectories.size(); writer++) {
+            for (int index = 0; index < files; index++) {
+                writeFile(writer, index, size);
+            }
+        }
+    }
+
+    @Override
+    void step() throws IOException {
+        int writer = random.nextInt(writerDirectories.size());
+        String filename = fileName(writer, random.nextInt(files));
+
+        byte[] header = tracker.expectWrite(writer, filename);
+        byte[] edit = new byte[EDIT_SIZE];
+        random.nextBytes(edit);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(new File(writerDirectories.get(writer), filename), "rw")) {
+            long offset = PropagationTracker.HEADER_LENGTH + (long) (random.nextDouble() * Math.max(0, size - PropagationTracker.HEADER_LENGTH - EDIT_SIZE));
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(edit);
+            randomAccessFile.seek(0);
+            randomAccessFile.write(header);
+        }
+    }
+}
+
+/**
+ * Batches of files created and then all deleted at once, as when a build directory is cleaned.
+ * Steps alternate between creating a batch and deleting it.
+ */
+class MassDeletes extends Workload {
+    private final long size;
+    private final int batch;
+    private final List<int[]> created;
+    private int nextIndex;
+
+    MassDeletes(List<File> writerDirectories, PropagationTracker tracker, int files, long seed, long size, int batch) {
+        super(writerDirectories, tracker, files, seed);
+        this.size = size;
+        this.batch = batch;
+        this.created = new ArrayList<>();
+    }
+
+    @Override
+    void prepare() {
+    }
+
+    @Override
+    void step() throws IOException {
+        if (created.isEmpty()) {
+            int writer = random.nextInt(writerDirectories.size());
+            for (int i = 0; i < batch; i++) {
+                int index = nextIndex++;
+                writeFile(writer, index, size);
+                created.add(new int[]{writer, index});
+            }
+        } else {
+            for (int[] file : created) {
+                deleteFile(file[0], file[1]);
+            }
+
+            created.clear();
+        }
+    }
+}
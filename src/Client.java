@@ -1,15 +1,40 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Client {
     private static final int SERVER_PORT = 5656;
+    private final String serverHost;
+    private final int serverPort;
     private Socket socket;
     private ServerThread serverThread;
 
+    public Client() {
+        this("localhost", SERVER_PORT);
+    }
+
+    public Client(String serverHost, int serverPort) {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Usage: java Client [&lt;host:port&gt;]
+     */
     public static void main(String[] args) throws Exception {
         Client client = new Client();
+        if (args.length > 0) {
+            String[] serverArguments = args[0].split(":");
+            client = new Client(serverArguments[0], Integer.parseInt(serverArguments[1]));
+        }
+
         client.start();
     }
 
@@ -41,10 +66,13 @@ public class Client {
 
         try {
             System.out.println("Connecting to server...");
-            socket = new Socket("localhost", SERVER_PORT);
+            socket = new Socket(serverHost, serverPort);
+            // Every command is sent as several small writes; don't let Nagle's algorithm hold them back.
+            socket.setTcpNoDelay(true);
             System.out.println("Successfully connected to server!");
 
             serverThread = new ServerThread(socket, clientDirectory);
+            serverThread.connectToReplica();
             new Thread(serverThread).start();
         } catch (ConnectException e) {
             System.out.println("Could not connect to server.");
@@ -52,6 +80,11 @@ public class Client {
     }
 
     public void stop() throws IOException {
+        if (serverThread != null) {
+            serverThread.stopPipeline();
+            serverThread.disconnectFromReplica();
+        }
+
         if (socket != null) {
             socket.close();
         }
@@ -63,25 +96,72 @@ public class Client {
 }
 
 class ServerThread implements Runnable {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int SMALL_UPLOAD_WORKERS = 2;
+    private static final int LARGE_UPLOAD_WORKERS = 1;
+    private static final int DOWNLOAD_WORKERS = 3;
+    private static final long LARGE_FILE_THRESHOLD = 8 * 1024 * 1024;
+    private static final String TEMPORARY_FILE_PREFIX = ".filesynctm-";
+    private static final String TEMPORARY_FILE_SUFFIX = ".part";
     private final int intervalSeconds = 5;
     private final String directory;
     private final ArrayList<String> clientFiles;
+    private final IgnoreFile ignoreFile;
+    private final Set<String> pendingUploads;
+    private final TreeMap<Long, String> unfinishedChanges;
+    private final Map<String, Long> syncedLastModified;
+    private final Map<String, Long> uploadingLastModified;
+    private final Map<String, Long> latestRemoteChanges;
+    private final QuiescenceTracker quiescenceTracker;
+    private final List<PathMatcher> tailMatchers;
+    private final Map<String, TailState> tailStates;
+    private long remoteChangeSequence = 0;
+    private long localChangeSequence = 0;
+    private long listedSequence = 0;
+    private int sessionId;
+    private String replicaAddress;
+    private PipelineStage<LocalChange> metadataStage;
+    private PipelineStage<LocalChange> smallUploadStage;
+    private PipelineStage<LocalChange> largeUploadStage;
+    private PipelineStage<RemoteChange> downloadStage;
+    private PipelineStage<RemoteChange> applyStage;
     private Socket clientSocket;
     private ObjectInputStream objectInputStream;
     private ObjectOutputStream objectOutputStream;
+    private Socket replicaSocket;
+    private ObjectInputStream replicaInputStream;
+    private ObjectOutputStream replicaOutputStream;
 
     public ServerThread(Socket clientSocket, String directory) throws IOException {
         this.clientSocket = clientSocket;
         this.directory = directory;
         this.objectOutputStream = new ObjectOutputStream(clientSocket.getOutputStream());
         this.objectInputStream = new ObjectInputStream(clientSocket.getInputStream());
+        this.ignoreFile = new IgnoreFile(new File(directory + IgnoreRules.FILENAME));
         this.clientFiles = getClientFiles(new File(directory));
+        this.pendingUploads = ConcurrentHashMap.newKeySet();
+        this.unfinishedChanges = new TreeMap<>();
+        this.syncedLastModified = new ConcurrentHashMap<>();
+        this.uploadingLastModified = new ConcurrentHashMap<>();
+        this.latestRemoteChanges = new ConcurrentHashMap<>();
+        this.quiescenceTracker = new QuiescenceTracker(
+                Long.getLong("filesync.quiescenceMillis", 3000),
+                Boolean.getBoolean("filesync.checkOpenHandles"));
+        this.tailMatchers = new ArrayList<>();
+        this.tailStates = new ConcurrentHashMap<>();
+
+        for (String tailPattern : System.getProperty("filesync.tailPatterns", "").split(",")) {
+            if (!tailPattern.isBlank()) {
+                tailMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + tailPattern.trim()));
+            }
+        }
     }
 
     @Override
     public void run() {
         try {
             compareServerFiles();
+            startPipeline();
         } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
@@ -99,6 +179,475 @@ class ServerThread implements Runnable {
         }
     }
 
+    /**
+     * Asks the primary for its read replicas and, if there are any, sends LIST and DOWNLOAD to one of them.
+     * Writes and stacked changes always go to the primary.
+     */
+    public void connectToReplica() throws IOException, ClassNotFoundException {
+        objectOutputStream.writeObject("REPLICAS");
+        objectOutputStream.writeObject("");
+
+        ArrayList<String> replicaAddresses = new ArrayList<>();
+        while (true) {
+            String replicaAddress = (String) objectInputStream.readObject();
+            if (replicaAddress.equals("REPLICAS_END")) {
+                break;
+            }
+
+            replicaAddresses.add(replicaAddress);
+        }
+
+        if (replicaAddresses.isEmpty()) {
+            return;
+        }
+
+        String replicaAddress = replicaAddresses.get(new Random().nextInt(replicaAddresses.size()));
+        String[] replicaArguments = replicaAddress.split(":");
+
+        try {
+            replicaSocket = new Socket(replicaArguments[0], Integer.parseInt(replicaArguments[1]));
+            replicaSocket.setTcpNoDelay(true);
+            replicaOutputStream = new ObjectOutputStream(replicaSocket.getOutputStream());
+            replicaInputStream = new ObjectInputStream(replicaSocket.getInputStream());
+            this.replicaAddress = replicaAddress;
+            System.out.println("Reading from replica " + replicaAddress);
+        } catch (IOException e) {
+            System.out.println("Could not connect to replica " + replicaAddress + ", reading from primary.");
+            disconnectFromReplica();
+        }
+    }
+
+    /**
+     * Starts the transfer stages. Each transfer worker opens its own connection and attaches it to this
+     * client's session, so a large transfer on one connection does not hold up the others.
+     */
+    public void startPipeline() throws IOException {
+        objectOutputStream.writeObject("SESSION");
+        objectOutputStream.writeObject("");
+        objectOutputStream.flush();
+        sessionId = objectInputStream.readInt();
+
+        applyStage = new PipelineStage<>("apply", QUEUE_CAPACITY);
+        applyStage.start(1, () -> new PipelineWorker<RemoteChange>() {
+            @Override
+            public void handle(RemoteChange remoteChange) throws IOException {
+                applyRemoteChange(remoteChange);
+            }
+        });
+
+        downloadStage = new PipelineStage<>("downloads", QUEUE_CAPACITY);
+        downloadStage.start(DOWNLOAD_WORKERS, this::createDownloadWorker);
+
+        metadataStage = new PipelineStage<>("metadata", QUEUE_CAPACITY);
+        metadataStage.start(1, this::createMetadataWorker);
+
+        smallUploadStage = new PipelineStage<>("small-uploads", QUEUE_CAPACITY);
+        smallUploadStage.start(SMALL_UPLOAD_WORKERS, this::createUploadWorker);
+
+        largeUploadStage = new PipelineStage<>("large-uploads", QUEUE_CAPACITY);
+        largeUploadStage.start(LARGE_UPLOAD_WORKERS, this::createUploadWorker);
+    }
+
+    public void stopPipeline() {
+        for (PipelineStage<?> stage : getPipelineStages()) {
+            stage.stop();
+        }
+    }
+
+    public List<PipelineStage<?>> getPipelineStages() {
+        List<PipelineStage<?>> stages = new ArrayList<>();
+        for (PipelineStage<?> stage : Arrays.asList(metadataStage, smallUploadStage, largeUploadStage, downloadStage, applyStage)) {
+            if (stage != null) {
+                stages.add(stage);
+            }
+        }
+
+        return stages;
+    }
+
+    private void printPipelineStats() {
+        boolean isIdle = true;
+        for (PipelineStage<?> stage : getPipelineStages()) {
+            if (stage.getQueueDepth() > 0 || stage.getInFlight() > 0) {
+                isIdle = false;
+            }
+        }
+
+        if (!isIdle) {
+            System.out.println("Pipeline: " + getPipelineStages());
+        }
+
+        if (quiescenceTracker.getPendingCount() > 0) {
+            System.out.println("Waiting for " + quiescenceTracker.getPendingCount() + " file(s) to stop changing");
+        }
+    }
+
+    public QuiescenceTracker getQuiescenceTracker() {
+        return quiescenceTracker;
+    }
+
+    private TransferConnection openTransferConnection(String address) throws IOException {
+        String host = clientSocket.getInetAddress().getHostAddress();
+        int port = clientSocket.getPort();
+        if (address != null) {
+            String[] addressArguments = address.split(":");
+            host = addressArguments[0];
+            port = Integer.parseInt(addressArguments[1]);
+        }
+
+        TransferConnection connection = new TransferConnection(host, port);
+        if (address == null) {
+            connection.attach(sessionId);
+        }
+
+        return connection;
+    }
+
+    private PipelineWorker<LocalChange> createUploadWorker() throws IOException {
+        TransferConnection connection = openTransferConnection(null);
+
+        return new PipelineWorker<LocalChange>() {
+            @Override
+            public void handle(LocalChange localChange) throws IOException, InterruptedException {
+                try {
+                    awaitEarlierChanges(localChange);
+                    upload(localChange.getFilename());
+                } finally {
+                    finishChange(localChange);
+                }
+            }
+
+            private void upload(String filename) throws IOException {
+                // Removed before uploading, so a write during the upload queues the file again.
+                pendingUploads.remove(filename);
+
+                // Taken before reading the file, so a write during the upload leaves a newer time behind.
+                long lastModified = new File(directory + filename).lastModified();
+                uploadingLastModified.put(filename, lastModified);
+
+                try {
+                    if (isTailFile(filename) && appendFile(filename, connection)) {
+                        syncedLastModified.put(filename, lastModified);
+                        return;
+                    }
+
+                    long uploadedSize = uploadFile(filename, connection.getObjectOutputStream(), connection.getObjectInputStream(),
+                            connection.getSocket(), false);
+                    if (uploadedSize < 0) {
+                        return;
+                    }
+
+                    if (isTailFile(filename)) {
+                        tailStates.put(filename, TailState.of(new File(directory + filename), uploadedSize));
+                    }
+
+                    syncedLastModified.put(filename, lastModified);
+                } catch (FileNotFoundException e) {
+                } catch (IOException e) {
+                    // Forgotten files count as new on the next scan, which uploads them again.
+                    forgetFile(filename);
+                    throw e;
+                } finally {
+                    uploadingLastModified.remove(filename);
+                }
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
+    }
+
+    /**
+     * Sends folder creations and deletions, in the order they were detected, over a connection of their
+     * own, so waiting for uploads below a path never holds up the scan.
+     */
+    private PipelineWorker<LocalChange> createMetadataWorker() throws IOException {
+        TransferConnection connection = openTransferConnection(null);
+
+        return new PipelineWorker<LocalChange>() {
+            @Override
+            public void handle(LocalChange localChange) throws IOException, InterruptedException {
+                try {
+                    awaitEarlierChanges(localChange);
+
+                    ObjectOutputStream outputStream = connection.getObjectOutputStream();
+                    ObjectInputStream inputStream = connection.getObjectInputStream();
+                    if (localChange.getCommand().equals("DELETE")) {
+                        deleteFile(localChange.getFilename(), outputStream, inputStream);
+                    } else {
+                        createFolder(localChange.getFilename(), outputStream, inputStream);
+                    }
+                } finally {
+                    finishChange(localChange);
+                }
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
+    }
+
+    private PipelineWorker<RemoteChange> createDownloadWorker() throws IOException {
+        TransferConnection connection = openTransferConnection(null);
+
+        return new PipelineWorker<RemoteChange>() {
+            private TransferConnection replicaConnection;
+
+            @Override
+            public void handle(RemoteChange remoteChange) throws IOException, InterruptedException {
+                if (!isLatestRemoteChange(remoteChange)) {
+                    return;
+                }
+
+                String filename = remoteChange.getFilename();
+                File targetFile = new File(directory + filename);
+                targetFile.getParentFile().mkdirs();
+
+                // Staged next to the target, so moving it into place is a rename within one file system.
+                File temporaryFile = File.createTempFile(TEMPORARY_FILE_PREFIX, TEMPORARY_FILE_SUFFIX, targetFile.getParentFile());
+                boolean isHandedOff = false;
+
+                try {
+                    boolean isDownloaded = false;
+                    if (replicaAddress != null) {
+                        try {
+                            if (replicaConnection == null) {
+                                replicaConnection = openTransferConnection(replicaAddress);
+                            }
+
+                            // A replica that has not applied this change yet answers -1; fall back to the primary then.
+                            isDownloaded = downloadFile("DOWNLOAD_SINCE", remoteChange.getReplicationSequence() + " " + filename,
+                                    replicaConnection.getObjectOutputStream(), replicaConnection.getObjectInputStream(), temporaryFile);
+                        } catch (IOException e) {
+                            if (replicaConnection != null) {
+                                replicaConnection.close();
+                                replicaConnection = null;
+                            }
+                        }
+                    }
+
+                    if (!isDownloaded) {
+                        isDownloaded = downloadFile("DOWNLOAD", filename, connection.getObjectOutputStream(), connection.getObjectInputStream(), temporaryFile);
+                    }
+
+                    if (isDownloaded) {
+                        remoteChange.setDownloadedFile(temporaryFile);
+                        applyStage.put(remoteChange);
+                        isHandedOff = true;
+                    }
+                } finally {
+                    // Once handed off, the apply stage moves the file into place or deletes it.
+                    if (!isHandedOff) {
+                        temporaryFile.delete();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                if (replicaConnection != null) {
+                    replicaConnection.close();
+                }
+
+                connection.close();
+            }
+        };
+    }
+
+    private boolean isTailFile(String filename) {
+        Path path = Paths.get(filename).getFileName();
+        for (PathMatcher tailMatcher : tailMatchers) {
+            if (path != null && tailMatcher.matches(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Ships only the bytes written since the last upload of an append-only file. Returns false when the
+     * file was not uploaded before, was rewritten rather than appended to, or the server rejected the
+     * offset, in which case the caller falls back to a full upload.
+     */
+    private boolean appendFile(String filename, TransferConnection connection) throws IOException {
+        File file = new File(directory + filename);
+        TailState tailState = tailStates.get(filename);
+        long size = file.length();
+
+        if (tailState == null || size < tailState.getOffset() || !tailState.matches(file)) {
+            return false;
+        }
+
+        long offset = tailState.getOffset();
+        if (size == offset) {
+            return true;
+        }
+
+        ObjectOutputStream outputStream = connection.getObjectOutputStream();
+        outputStream.writeObject("APPEND");
+        outputStream.writeObject(filename);
+        outputStream.writeLong(offset);
+        outputStream.writeLong(size - offset);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.seek(offset);
+
+        byte[] buffer = new byte[connection.getSocket().getReceiveBufferSize()];
+        long remaining = size - offset;
+        int bytesRead;
+        while (remaining > 0 && (bytesRead = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+        }
+
+        randomAccessFile.close();
+        if (remaining > 0) {
+            throw new EOFException("File '" + filename + "' shrank during append");
+        }
+
+        outputStream.flush();
+
+        if (!connection.getObjectInputStream().readBoolean()) {
+            tailStates.remove(filename);
+            return false;
+        }
+
+        tailStates.put(filename, TailState.of(file, size));
+        System.out.println("Appended " + (size - offset) + " bytes of '" + filename + "' to server.");
+        return true;
+    }
+
+    private void enqueueUpload(String filename) throws InterruptedException {
+        if (!pendingUploads.add(filename)) {
+            return;
+        }
+
+        LocalChange localChange = registerChange("UPLOAD", filename);
+        File file = new File(directory + filename);
+        if (file.length() >= LARGE_FILE_THRESHOLD) {
+            largeUploadStage.put(localChange);
+        } else {
+            smallUploadStage.put(localChange);
+        }
+    }
+
+    private void enqueueMetadataChange(String command, String filename) throws InterruptedException {
+        metadataStage.put(registerChange(command, filename));
+    }
+
+    /**
+     * Numbers a local change in the order it was detected. Only the change detector registers changes,
+     * so every stage receives its changes in that order.
+     */
+    private LocalChange registerChange(String command, String filename) {
+        synchronized (unfinishedChanges) {
+            LocalChange localChange = new LocalChange(++localChangeSequence, command, filename);
+            unfinishedChanges.put(localChange.getSequence(), filename);
+            return localChange;
+        }
+    }
+
+    /**
+     * Blocks until the server has confirmed every earlier change to the same path, a path below it or a
+     * folder above it. Changes go out over different connections, so without this a deletion could
+     * overtake an upload in flight, or an upload of a recreated file could overtake its deletion. A change
+     * only ever waits for earlier ones, and stages take their changes in order, so the earliest change
+     * is always free to go.
+     */
+    private void awaitEarlierChanges(LocalChange localChange) throws InterruptedException {
+        synchronized (unfinishedChanges) {
+            while (unfinishedChanges.headMap(localChange.getSequence()).values().stream()
+                    .anyMatch(path -> isOverlapping(path, localChange.getFilename()))) {
+                unfinishedChanges.wait();
+            }
+        }
+    }
+
+    private void finishChange(LocalChange localChange) {
+        synchronized (unfinishedChanges) {
+            unfinishedChanges.remove(localChange.getSequence());
+            unfinishedChanges.notifyAll();
+        }
+    }
+
+    private static boolean isOverlapping(String path, String otherPath) {
+        return path.equals(otherPath) || path.startsWith(otherPath + File.separator) || otherPath.startsWith(path + File.separator);
+    }
+
+    private void forgetFile(String filename) {
+        synchronized (clientFiles) {
+            clientFiles.remove(filename);
+        }
+
+        syncedLastModified.remove(filename);
+        tailStates.remove(filename);
+    }
+
+    private boolean isLatestRemoteChange(RemoteChange remoteChange) {
+        Long latestSequence = latestRemoteChanges.get(remoteChange.getFilename());
+        return latestSequence != null && latestSequence == remoteChange.getSequence();
+    }
+
+    private void applyRemoteChange(RemoteChange remoteChange) throws IOException {
+        String filename = remoteChange.getFilename();
+        File file = new File(directory + filename);
+
+        // Holds the same lock as the scan in checkForChanges, so applied files are never seen as local changes.
+        synchronized (clientFiles) {
+            if (!isLatestRemoteChange(remoteChange)) {
+                if (remoteChange.getDownloadedFile() != null) {
+                    remoteChange.getDownloadedFile().delete();
+                }
+
+                return;
+            }
+
+            switch (remoteChange.getCommand()) {
+                case "DOWNLOAD":
+                    file.getParentFile().mkdirs();
+                    Files.move(remoteChange.getDownloadedFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    syncedLastModified.put(filename, file.lastModified());
+                    if (!clientFiles.contains(filename)) {
+                        clientFiles.add(filename);
+                    }
+
+                    System.out.println("Downloaded file '" + filename + "' from server.");
+                    break;
+                case "CREATE_FOLDER":
+                    file.mkdirs();
+                    if (!clientFiles.contains(filename)) {
+                        clientFiles.add(filename);
+                    }
+                    break;
+                case "DELETE":
+                    file.delete();
+                    clientFiles.remove(filename);
+                    syncedLastModified.remove(filename);
+                    break;
+            }
+
+            latestRemoteChanges.remove(filename, remoteChange.getSequence());
+        }
+    }
+
+    public void disconnectFromReplica() {
+        if (replicaSocket != null) {
+            try {
+                replicaSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        replicaSocket = null;
+        replicaOutputStream = null;
+        replicaInputStream = null;
+    }
+
     public ArrayList<String> getStackedChanges() throws IOException, ClassNotFoundException {
         objectOutputStream.writeObject("STACKED_CHANGES");
         objectOutputStream.writeObject("");
@@ -122,25 +671,36 @@ class ServerThread implements Runnable {
     }
 
     public void compareServerFiles() throws IOException, ClassNotFoundException {
-        objectOutputStream.writeObject("LIST");
-        objectOutputStream.writeObject("");
+        listedSequence = readSequence(objectOutputStream, objectInputStream);
 
-        ArrayList<String> serverFilenamesData = new ArrayList<>();
-        while (true) {
-            String filenameData = (String) objectInputStream.readObject();
-            if (filenameData.equals("LIST_END")) {
-                break;
+        ArrayList<String> serverFilenamesData = null;
+        if (replicaSocket != null) {
+            try {
+                // A replica that is behind the primary may still list deleted files or miss new ones.
+                if (readSequence(replicaOutputStream, replicaInputStream) >= listedSequence) {
+                    serverFilenamesData = listServerFiles(replicaOutputStream, replicaInputStream);
+                }
+            } catch (IOException e) {
+                System.out.println("Lost connection with replica, reading from primary.");
+                disconnectFromReplica();
             }
+        }
 
-            serverFilenamesData.add(filenameData);
+        if (serverFilenamesData == null) {
+            serverFilenamesData = listServerFiles(objectOutputStream, objectInputStream);
         }
 
+        IgnoreRules ignoreRules = ignoreFile.get();
         ArrayList<String> serverFilenames = new ArrayList<>();
         for (String filenameData : serverFilenamesData) {
             String[] filenameArguments = filenameData.split(" ");
             String typePrefix = filenameArguments[0];
             String filename = filenameArguments[1];
 
+            if (isLocalOnly(filename) || ignoreRules.isIgnored(filename, typePrefix.equals("DIR"))) {
+                continue;
+            }
+
             serverFilenames.add(filename);
 
             File file = new File(directory + filename);
@@ -176,89 +736,200 @@ class ServerThread implements Runnable {
         }
     }
 
-    public void checkForChanges() throws IOException, ClassNotFoundException {
-        List<String> toAdd = new ArrayList<>();
-        List<String> toDelete = new ArrayList<>();
+    /**
+     * The replication log position a server's files reflect; see {@code Server.getReplicationSequence()}.
+     */
+    private long readSequence(ObjectOutputStream outputStream, ObjectInputStream inputStream) throws IOException {
+        outputStream.writeObject("SEQUENCE");
+        outputStream.writeObject("");
+        outputStream.flush();
 
-        ArrayList<String> newClientFiles = getClientFiles(new File(directory));
-        clientFiles.sort(Collections.reverseOrder());
+        return inputStream.readLong();
+    }
+
+    private ArrayList<String> listServerFiles(ObjectOutputStream outputStream, ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+        outputStream.writeObject("LIST");
+        outputStream.writeObject("");
+        outputStream.flush();
 
-        for (String filename : clientFiles) {
-            if (!newClientFiles.contains(filename)) {
-                deleteFile(filename);
-                toDelete.add(filename);
+        ArrayList<String> serverFilenamesData = new ArrayList<>();
+        while (true) {
+            String filenameData = (String) inputStream.readObject();
+            if (filenameData.equals("LIST_END")) {
+                break;
             }
+
+            serverFilenamesData.add(filenameData);
         }
 
-        Collections.sort(clientFiles);
-        for (String filename : newClientFiles) {
-            File file = new File(directory + filename);
+        return serverFilenamesData;
+    }
 
-            if (!clientFiles.contains(filename)) {
-                if (file.isDirectory()) {
-                    createFolder(filename);
+    /**
+     * The change detector: diffs the working directory against the known files and hands folder
+     * creations, deletions, uploads and stacked changes to the pipeline stages.
+     */
+    public void checkForChanges() throws IOException, ClassNotFoundException, InterruptedException {
+        List<String> toCreate = new ArrayList<>();
+        List<String> toUpload = new ArrayList<>();
+        List<String> toDelete = new ArrayList<>();
+        List<String> toForget = new ArrayList<>();
+        IgnoreRules ignoreRules = ignoreFile.get();
+
+        synchronized (clientFiles) {
+            ArrayList<String> newClientFiles = getClientFiles(new File(directory), ignoreRules, ignoreRules.getRoot());
+            Set<String> newClientFileSet = new HashSet<>(newClientFiles);
+            Set<String> clientFileSet = new HashSet<>(clientFiles);
+
+            clientFiles.sort(Collections.reverseOrder());
+            for (String filename : clientFiles) {
+                if (newClientFileSet.contains(filename)) {
+                    continue;
+                }
+
+                // Files that became excluded are still there; stop syncing them instead of deleting them everywhere.
+                File file = new File(directory + filename);
+                if (file.exists() && ignoreRules.isIgnored(filename, file.isDirectory())) {
+                    toForget.add(filename);
                 } else {
-                    try {
-                        uploadFile(filename);
-                    } catch (FileNotFoundException e) {
-                        continue;
-                    }
+                    toDelete.add(filename);
                 }
+            }
 
-                toAdd.add(filename);
-            } else if (!file.isDirectory()) {
-                long lastModified = file.lastModified();
-                Date currentDate = new java.util.Date();
+            long now = System.currentTimeMillis();
+            for (String filename : newClientFiles) {
+                File file = new File(directory + filename);
+                boolean isChanged = false;
 
-                if (currentDate.getTime() - (intervalSeconds * 1000) <= lastModified) {
-                    try {
-                        uploadFile(filename);
-                    } catch (FileNotFoundException e) {
+                if (!clientFileSet.contains(filename)) {
+                    if (file.isDirectory()) {
+                        toCreate.add(filename);
+                    } else {
+                        isChanged = true;
                     }
+
+                    clientFiles.add(filename);
+                } else if (!file.isDirectory()) {
+                    long lastModified = file.lastModified();
+
+                    isChanged = quiescenceTracker.isPending(filename)
+                            || (now - (intervalSeconds * 1000) <= lastModified
+                            && !Objects.equals(syncedLastModified.get(filename), lastModified)
+                            && !Objects.equals(uploadingLastModified.get(filename), lastModified));
+                }
+
+                // Files still being written are held back until they stop changing, except append-only
+                // files, which ship their new bytes on every scan.
+                if (isChanged && (isTailFile(filename) || quiescenceTracker.isQuiescent(filename, file, now))) {
+                    toUpload.add(filename);
                 }
             }
+
+            List<String> removed = new ArrayList<>(toDelete);
+            removed.addAll(toForget);
+            for (String filename : removed) {
+                quiescenceTracker.forget(filename);
+                tailStates.remove(filename);
+            }
+
+            clientFiles.removeAll(removed);
+            Collections.sort(clientFiles);
         }
 
-        clientFiles.addAll(toAdd);
-        clientFiles.removeAll(toDelete);
-        Collections.sort(clientFiles);
+        for (String filename : toDelete) {
+            enqueueMetadataChange("DELETE", filename);
+        }
+
+        for (String filename : toCreate) {
+            enqueueMetadataChange("CREATE_FOLDER", filename);
+        }
+
+        for (String filename : toUpload) {
+            enqueueUpload(filename);
+        }
 
         ArrayList<String> stackedChanges = getStackedChanges();
         for (String stackedChange : stackedChanges) {
-            String[] stackedChangeArgs = stackedChange.split(" ");
-            String command = stackedChangeArgs[0];
-            String filename = stackedChangeArgs[1];
+            // "<command> <replication sequence> <filename>"
+            String[] stackedChangeArgs = stackedChange.split(" ", 3);
+            if (isIgnoredChange(ignoreRules, stackedChangeArgs[0], stackedChangeArgs[2])) {
+                continue;
+            }
 
-            File file = new File(directory + filename);
-            switch (command) {
-                case "DOWNLOAD":
-                    downloadFile(filename);
-                    clientFiles.add(filename);
-                    break;
-                case "CREATE_FOLDER":
-                    file.mkdir();
-                    break;
-                case "DELETE":
-                    file.delete();
-                    break;
+            RemoteChange remoteChange = new RemoteChange(++remoteChangeSequence, Long.parseLong(stackedChangeArgs[1]),
+                    stackedChangeArgs[0], stackedChangeArgs[2]);
+            latestRemoteChanges.put(remoteChange.getFilename(), remoteChange.getSequence());
+
+            if (remoteChange.getCommand().equals("DOWNLOAD")) {
+                downloadStage.put(remoteChange);
+            } else {
+                applyStage.put(remoteChange);
             }
         }
+
+        printPipelineStats();
+    }
+
+    private boolean isIgnoredChange(IgnoreRules ignoreRules, String command, String filename) {
+        if (isLocalOnly(filename)) {
+            return true;
+        }
+
+        boolean isDirectory;
+        switch (command) {
+            case "CREATE_FOLDER":
+                isDirectory = true;
+                break;
+            case "DELETE":
+                isDirectory = new File(directory + filename).isDirectory();
+                break;
+            default:
+                isDirectory = false;
+        }
+
+        return ignoreRules.isIgnored(filename, isDirectory);
     }
 
     public void downloadFile(String filename) throws IOException {
-        objectOutputStream.writeObject("DOWNLOAD");
-        objectOutputStream.flush();
-        objectOutputStream.writeObject(filename);
-        objectOutputStream.flush();
+        if (replicaSocket != null) {
+            try {
+                // A replica that has not caught up with the listing yet answers -1; fall back to the primary then.
+                if (downloadFile("DOWNLOAD_SINCE", listedSequence + " " + filename, replicaOutputStream, replicaInputStream, new File(directory + filename))) {
+                    System.out.println("Downloaded file '" + filename + "' from replica.");
+                    return;
+                }
+            } catch (SocketException e) {
+                System.out.println("Lost connection with replica, reading from primary.");
+                disconnectFromReplica();
+            }
+        }
 
-        String filePath = directory + filename;
-        FileOutputStream fileOutputStream = new FileOutputStream(filePath);
+        if (downloadFile("DOWNLOAD", filename, objectOutputStream, objectInputStream, new File(directory + filename))) {
+            System.out.println("Downloaded file '" + filename + "' from server.");
+        }
+    }
+
+    /**
+     * Sends a DOWNLOAD or DOWNLOAD_SINCE and writes the file to the target. Returns false when the server
+     * answers that it has no (recent enough) copy.
+     */
+    private boolean downloadFile(String command, String argument, ObjectOutputStream outputStream, ObjectInputStream inputStream, File targetFile) throws IOException {
+        outputStream.writeObject(command);
+        outputStream.flush();
+        outputStream.writeObject(argument);
+        outputStream.flush();
+
+        long size = inputStream.readLong();
+        if (size < 0) {
+            return false;
+        }
+
+        FileOutputStream fileOutputStream = new FileOutputStream(targetFile);
 
         byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
         int bytesRead;
 
-        long size = objectInputStream.readLong();
-        while (size > 0 && (bytesRead = objectInputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
+        while (size > 0 && (bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
             fileOutputStream.write(buffer, 0, bytesRead);
             size -= bytesRead;
         }
@@ -266,61 +937,110 @@ class ServerThread implements Runnable {
         fileOutputStream.flush();
         fileOutputStream.close();
 
-        System.out.println("Downloaded file '" + filename + "' from server.");
+        return true;
     }
 
     public void uploadFile(String filename) throws IOException {
+        uploadFile(filename, objectOutputStream, objectInputStream, clientSocket, true);
+    }
+
+    /**
+     * Uploads a file and waits for the server to confirm it was stored. Returns the number of bytes
+     * uploaded, or -1 when the server refused the file.
+     */
+    private long uploadFile(String filename, ObjectOutputStream outputStream, ObjectInputStream inputStream, Socket socket, boolean showProgress) throws IOException {
         String filePath = directory + filename;
         File file = new File(filePath);
 
         FileInputStream fileInputStream = new FileInputStream(filePath);
 
-        objectOutputStream.writeObject("UPLOAD");
-        objectOutputStream.flush();
-        objectOutputStream.writeObject(filename);
-        objectOutputStream.flush();
+        outputStream.writeObject("UPLOAD");
+        outputStream.flush();
+        outputStream.writeObject(filename);
+        outputStream.flush();
 
-        byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
-        float filesize = file.length();
-        float chunks = filesize / (float) buffer.length;
+        byte[] buffer = new byte[socket.getReceiveBufferSize()];
+        long size = file.length();
+        long uploadedSize = size;
+        float chunks = (float) size / (float) buffer.length;
         if (chunks < 1.0F) {
             chunks = 1.0F;
         }
         int bytesRead;
         int chunkIndex = 0;
 
-        objectOutputStream.writeLong(file.length());
+        outputStream.writeLong(size);
 
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-            objectOutputStream.write(buffer, 0, bytesRead);
-            objectOutputStream.flush();
+        // Never send more than the announced size, even if the file grows while it is being uploaded.
+        while (size > 0 && (bytesRead = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+            outputStream.flush();
+            size -= bytesRead;
             chunkIndex++;
 
-            float percentage = chunkIndex / chunks * 100;
-            progressBar((int) percentage);
+            if (showProgress) {
+                float percentage = chunkIndex / chunks * 100;
+                progressBar((int) percentage);
+            }
         }
 
-        System.out.println('\n');
-
         fileInputStream.close();
 
+        // A file that shrank cannot fill the announced size. The connection is out of step after this, and
+        // the server drops the partial file once it is closed.
+        if (size > 0) {
+            throw new EOFException("File '" + filename + "' shrank during upload");
+        }
+
+        outputStream.flush();
+
+        if (showProgress) {
+            System.out.println('\n');
+        }
+
+        if (!inputStream.readBoolean()) {
+            System.out.println("Server did not store file '" + filename + "'.");
+            return -1;
+        }
+
         System.out.println("Uploaded file '" + filename + "' to server.");
+        return uploadedSize;
     }
 
     public void createFolder(String folder) throws IOException {
-        objectOutputStream.writeObject("CREATE_FOLDER");
-        objectOutputStream.writeObject(folder);
+        createFolder(folder, objectOutputStream, objectInputStream);
+    }
+
+    private void createFolder(String folder, ObjectOutputStream outputStream, ObjectInputStream inputStream) throws IOException {
+        outputStream.writeObject("CREATE_FOLDER");
+        outputStream.writeObject(folder);
+        outputStream.flush();
+
+        if (!inputStream.readBoolean()) {
+            System.out.println("Server did not create folder '" + folder + "'.");
+            return;
+        }
 
         System.out.println("Created folder '" + folder + "' from client.");
     }
 
     public void deleteFile(String filename) throws IOException {
-        objectOutputStream.writeObject("DELETE");
-        objectOutputStream.writeObject(filename);
+        deleteFile(filename, objectOutputStream, objectInputStream);
+    }
+
+    private void deleteFile(String filename, ObjectOutputStream outputStream, ObjectInputStream inputStream) throws IOException {
+        outputStream.writeObject("DELETE");
+        outputStream.writeObject(filename);
+        outputStream.flush();
 
         File file = new File(directory + filename);
         file.delete();
 
+        if (!inputStream.readBoolean()) {
+            System.out.println("Server did not delete '" + filename + "'.");
+            return;
+        }
+
         System.out.println("Deleted file '" + filename + "' from client.");
     }
 
@@ -334,17 +1054,40 @@ class ServerThread implements Runnable {
     }
 
     public ArrayList<String> getClientFiles(File directory) {
+        IgnoreRules ignoreRules = ignoreFile.get();
+        return getClientFiles(directory, ignoreRules, ignoreRules.getRoot());
+    }
+
+    /**
+     * Lists a folder recursively, leaving out excluded entries. Excluded folders are not listed at all.
+     */
+    private ArrayList<String> getClientFiles(File directory, IgnoreRules ignoreRules, IgnoreRules.Cursor cursor) {
         ArrayList<String> clientFiles = new ArrayList<>();
         File[] files = directory.listFiles();
 
         if (files != null) {
             for (File file : files) {
+                if (isTemporaryFile(file.getName())) {
+                    continue;
+                }
+
+                IgnoreRules.Cursor fileCursor = cursor;
+                if (!cursor.isUnconstrained()) {
+                    fileCursor = ignoreRules.enter(cursor, file.getName());
+                    if (ignoreRules.isIgnored(fileCursor, file::isDirectory)) {
+                        continue;
+                    }
+                }
+
                 String localPath = file.getAbsolutePath();
                 localPath = localPath.replace(this.directory, "");
+                if (isLocalOnly(localPath)) {
+                    continue;
+                }
 
                 clientFiles.add(localPath);
                 if (file.isDirectory()) {
-                    clientFiles.addAll(getClientFiles(file));
+                    clientFiles.addAll(getClientFiles(file, ignoreRules, fileCursor));
                 }
             }
         }
@@ -353,6 +1096,19 @@ class ServerThread implements Runnable {
         return clientFiles;
     }
 
+    /**
+     * The client's own {@value IgnoreRules#FILENAME}: its selective sync applies to this client only, so the
+     * file is never uploaded, and one of that name on the server is never downloaded or deleted here.
+     */
+    private static boolean isLocalOnly(String filename) {
+        Path path = Paths.get(filename);
+        return path.getNameCount() == 1 && path.getFileName().toString().equals(IgnoreRules.FILENAME);
+    }
+
+    private static boolean isTemporaryFile(String name) {
+        return name.startsWith(TEMPORARY_FILE_PREFIX) && name.endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+
     public static void progressBar(int percentage) {
         int length = 26;
         int filledLength = (int) (percentage / 100.0 * length);
@@ -366,4 +1122,376 @@ class ServerThread implements Runnable {
 
         System.out.print(sb);
     }
-}
\ No newline at end of file
+}
+
+/**
+ * A change detected in the working directory: an upload, a folder creation or a deletion, numbered in
+ * the order it was detected.
+ */
+class LocalChange {
+    private final long sequence;
+    private final String command;
+    private final String filename;
+
+    public LocalChange(long sequence, String command, String filename) {
+        this.sequence = sequence;
+        this.command = command;
+        this.filename = filename;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+}
+
+class RemoteChange {
+    private final long sequence;
+    private final long replicationSequence;
+    private final String command;
+    private final String filename;
+    private File downloadedFile;
+
+    public RemoteChange(long sequence, long replicationSequence, String command, String filename) {
+        this.sequence = sequence;
+        this.replicationSequence = replicationSequence;
+        this.command = command;
+        this.filename = filename;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The change's position in the primary's replication log.
+     */
+    public long getReplicationSequence() {
+        return replicationSequence;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public File getDownloadedFile() {
+        return downloadedFile;
+    }
+
+    public void setDownloadedFile(File downloadedFile) {
+        this.downloadedFile = downloadedFile;
+    }
+}
+
+/**
+ * Holds back uploads of files that are still being written. A file is quiescent once its size has not
+ * changed since the previous scan and its last modification is at least the quiescence window old.
+ * Optionally also requires that no other process has the file open for writing; this is best effort,
+ * since only mandatory locks or sharing modes (as on Windows) can be detected.
+ */
+class QuiescenceTracker {
+    private final long quiescenceMillis;
+    private final boolean checkOpenHandles;
+    private final Map<String, Long> observedSizes;
+
+    public QuiescenceTracker(long quiescenceMillis, boolean checkOpenHandles) {
+        this.quiescenceMillis = quiescenceMillis;
+        this.checkOpenHandles = checkOpenHandles;
+        this.observedSizes = new HashMap<>();
+    }
+
+    /**
+     * Records an observation of the file and returns whether it is stable enough to upload. Files that
+     * are not stable yet stay pending, so they are checked again on the next scan.
+     */
+    public synchronized boolean isQuiescent(String filename, File file, long now) {
+        long size = file.length();
+        Long previousSize = observedSizes.put(filename, size);
+
+        boolean isQuiescent = now - file.lastModified() >= quiescenceMillis
+                && (previousSize == null || previousSize == size)
+                && !(checkOpenHandles && isOpenForWriting(file));
+
+        if (isQuiescent) {
+            observedSizes.remove(filename);
+        }
+
+        return isQuiescent;
+    }
+
+    public synchronized boolean isPending(String filename) {
+        return observedSizes.containsKey(filename);
+    }
+
+    public synchronized void forget(String filename) {
+        observedSizes.remove(filename);
+    }
+
+    public synchronized int getPendingCount() {
+        return observedSizes.size();
+    }
+
+    private boolean isOpenForWriting(File file) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+             FileLock fileLock = fileChannel.tryLock()) {
+            return fileLock == null;
+        } catch (AccessDeniedException e) {
+            return false;
+        } catch (OverlappingFileLockException | IOException e) {
+            return true;
+        }
+    }
+}
+
+/**
+ * What was last uploaded of an append-only file: its length and the bytes just before that length, used
+ * to check that the file was appended to rather than rewritten.
+ */
+class TailState {
+    private static final int FINGERPRINT_LENGTH = 4096;
+    private final long offset;
+    private final byte[] fingerprint;
+
+    private TailState(long offset, byte[] fingerprint) {
+        this.offset = offset;
+        this.fingerprint = fingerprint;
+    }
+
+    public static TailState of(File file, long offset) throws IOException {
+        return new TailState(offset, readFingerprint(file, offset));
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean matches(File file) throws IOException {
+        return Arrays.equals(fingerprint, readFingerprint(file, offset));
+    }
+
+    private static byte[] readFingerprint(File file, long offset) throws IOException {
+        int length = (int) Math.min(FINGERPRINT_LENGTH, offset);
+        byte[] fingerprint = new byte[length];
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        randomAccessFile.seek(offset - length);
+        randomAccessFile.readFully(fingerprint);
+        randomAccessFile.close();
+
+        return fingerprint;
+    }
+}
+
+class TransferConnection {
+    private final Socket socket;
+    private final ObjectOutputStream objectOutputStream;
+    private final ObjectInputStream objectInputStream;
+
+    public TransferConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+        this.objectInputStream = new ObjectInputStream(socket.getInputStream());
+    }
+
+    /**
+     * Marks this connection as belonging to the client with the given session id, so its uploads are
+     * not fanned back out to that client.
+     */
+    public void attach(int sessionId) throws IOException {
+        objectOutputStream.writeObject("ATTACH");
+        objectOutputStream.writeObject(String.valueOf(sessionId));
+        objectOutputStream.flush();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public ObjectOutputStream getObjectOutputStream() {
+        return objectOutputStream;
+    }
+
+    public ObjectInputStream getObjectInputStream() {
+        return objectInputStream;
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
+
+interface PipelineWorker<T> {
+    void handle(T task) throws IOException, InterruptedException;
+
+    default void close() {
+    }
+}
+
+interface PipelineWorkerFactory<T> {
+    PipelineWorker<T> create() throws IOException;
+}
+
+/**
+ * A bounded queue drained by a fixed number of worker threads. {@link #put(Object)} blocks while the
+ * queue is full, which pushes back on whichever stage feeds it. A worker whose task throws is closed
+ * and replaced, so a failing task never costs the stage a thread.
+ */
+class PipelineStage<T> {
+    private static final int RETRY_MILLIS = 1000;
+    private final String name;
+    private final BlockingQueue<QueuedTask<T>> queue;
+    private final List<Thread> workerThreads;
+    private final AtomicInteger inFlight;
+    private final AtomicLong completed;
+    private final AtomicLong failed;
+    private final AtomicLong totalWaitNanos;
+    private final AtomicLong totalServiceNanos;
+    private final AtomicLong maxServiceNanos;
+    private volatile boolean running = true;
+
+    public PipelineStage(String name, int capacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.workerThreads = new ArrayList<>();
+        this.inFlight = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.totalWaitNanos = new AtomicLong();
+        this.totalServiceNanos = new AtomicLong();
+        this.maxServiceNanos = new AtomicLong();
+    }
+
+    public void start(int workerCount, PipelineWorkerFactory<T> workerFactory) {
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(() -> work(workerFactory), name + "-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (Thread workerThread : workerThreads) {
+            workerThread.interrupt();
+        }
+    }
+
+    public void put(T task) throws InterruptedException {
+        queue.put(new QueuedTask<>(task, System.nanoTime()));
+    }
+
+    private void work(PipelineWorkerFactory<T> workerFactory) {
+        PipelineWorker<T> worker = null;
+
+        while (running) {
+            try {
+                if (worker == null) {
+                    worker = workerFactory.create();
+                }
+
+                QueuedTask<T> queuedTask = queue.take();
+                long startedAt = System.nanoTime();
+                totalWaitNanos.addAndGet(startedAt - queuedTask.enqueuedAt);
+                inFlight.incrementAndGet();
+
+                try {
+                    worker.handle(queuedTask.task);
+                    completed.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.out.println(Thread.currentThread().getName() + " - failed: " + e);
+
+                    // The connection may be broken or out of step; open a fresh one for the next task.
+                    worker.close();
+                    worker = null;
+                } finally {
+                    inFlight.decrementAndGet();
+                    long serviceNanos = System.nanoTime() - startedAt;
+                    totalServiceNanos.addAndGet(serviceNanos);
+                    maxServiceNanos.accumulateAndGet(serviceNanos, Math::max);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println(Thread.currentThread().getName() + " - could not start worker: " + e);
+
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        if (worker != null) {
+            worker.close();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long handled = completed.get() + failed.get();
+        return handled == 0 ? 0 : totalWaitNanos.get() / 1_000_000.0 / handled;
+    }
+
+    public double getAverageServiceMillis() {
+        long handled = completed.get() + failed.get();
+        return handled == 0 ? 0 : totalServiceNanos.get() / 1_000_000.0 / handled;
+    }
+
+    public double getMaxServiceMillis() {
+        return maxServiceNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(queued=%d, inFlight=%d, completed=%d, failed=%d, avgWaitMs=%.1f, avgServiceMs=%.1f, maxServiceMs=%.1f)",
+                name, getQueueDepth(), getInFlight(), getCompleted(), getFailed(),
+                getAverageWaitMillis(), getAverageServiceMillis(), getMaxServiceMillis());
+    }
+
+    private static class QueuedTask<T> {
+        private final T task;
+        private final long enqueuedAt;
+
+        private QueuedTask(T task, long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
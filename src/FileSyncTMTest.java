@@ -35,11 +35,11 @@ public class FileSyncTMTest {
     }
 
     private String getClientPath() {
-        return System.getProperty("user.dir") + "\\" + TEST_WORKING_DIR_CLIENT;
+        return System.getProperty("user.dir") + File.separator + TEST_WORKING_DIR_CLIENT;
     }
 
     private String getServerPath() {
-        return System.getProperty("user.dir") + "\\" + TEST_WORKING_DIR_SERVER;
+        return System.getProperty("user.dir") + File.separator + TEST_WORKING_DIR_SERVER;
     }
 
     @Test
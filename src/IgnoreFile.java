@@ -0,0 +1,49 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A rules file, either a client's {@value IgnoreRules#FILENAME} or a server's
+ * {@value IgnoreRules#SERVER_FILENAME}, recompiled when it changes. Checks the file at most once a
+ * second, so callers can ask for the rules on every scan or mutation.
+ */
+class IgnoreFile {
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private final File file;
+    private IgnoreRules rules;
+    private long loadedLastModified = -1;
+    private long loadedLength = -1;
+    private long checkedAt;
+
+    public IgnoreFile(File file) {
+        this.file = file;
+        this.rules = IgnoreRules.empty();
+    }
+
+    public synchronized IgnoreRules get() {
+        long now = System.currentTimeMillis();
+        if (loadedLastModified >= 0 && now - checkedAt < CHECK_INTERVAL_MILLIS) {
+            return rules;
+        }
+
+        checkedAt = now;
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (lastModified == loadedLastModified && length == loadedLength) {
+            return rules;
+        }
+
+        try {
+            rules = file.isFile()
+                    ? new IgnoreRules(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                    : IgnoreRules.empty();
+            loadedLastModified = lastModified;
+            loadedLength = length;
+        } catch (IOException e) {
+            // Keep the previous rules; the file is probably being rewritten and is read again next time.
+        }
+
+        return rules;
+    }
+}
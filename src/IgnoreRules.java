@@ -0,0 +1,358 @@
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Ignore and selective-sync rules in .gitignore syntax. A client reads them from a {@value #FILENAME} file
+ * in the root of its synced directory; that file only applies to the client and is never synced. A server
+ * reads its own rules from a {@value #SERVER_FILENAME} file in the root of the server directory, which
+ * clients can neither list nor write. Patterns:
+ * <ul>
+ *     <li>{@code node_modules} or {@code *.tmp} match at any depth; a pattern containing a slash, such as
+ *     {@code /build} or {@code docs/drafts}, is relative to the root.</li>
+ *     <li>{@code *}, {@code ?} and {@code [a-z]} match within one path segment, {@code **} matches any
+ *     number of segments.</li>
+ *     <li>A trailing slash matches directories only; a leading {@code !} includes again what an earlier
+ *     rule excluded, and the last matching rule wins.</li>
+ * </ul>
+ * Excluded directories are never descended into, so, as with git, a file cannot be included again when
+ * one of its folders is excluded. Selective sync is expressed the same way: {@code /*} followed by
+ * {@code !/projects/}.
+ * <p>
+ * The rules are compiled into a trie of path segments, with literal segments in hash maps and glob
+ * segments as precompiled patterns. A {@link Cursor} holds the trie nodes reachable for a directory, so
+ * deciding on an entry costs a lookup per active node instead of matching every rule against the full path.
+ */
+class IgnoreRules {
+    public static final String FILENAME = ".syncignore";
+    public static final String SERVER_FILENAME = ".serverignore";
+    private static final String ANY_DEPTH = "**";
+    private static final IgnoreRules EMPTY = new IgnoreRules(Collections.emptyList());
+    private final Node root;
+    private final Cursor rootCursor;
+    private final boolean isEmpty;
+
+    public IgnoreRules(List<String> lines) {
+        this.root = new Node(false);
+
+        int ruleIndex = 0;
+        for (String line : lines) {
+            if (addRule(line, ruleIndex)) {
+                ruleIndex++;
+            }
+        }
+
+        this.isEmpty = ruleIndex == 0;
+        this.rootCursor = isEmpty ? Cursor.NONE : new Cursor(closure(Collections.singletonList(root)));
+    }
+
+    public static IgnoreRules empty() {
+        return EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * The cursor of the synced directory's root.
+     */
+    public Cursor getRoot() {
+        return rootCursor;
+    }
+
+    /**
+     * The cursor of the entry with the given name inside the directory the parent cursor points at.
+     */
+    public Cursor enter(Cursor parent, String name) {
+        if (parent.nodes.length == 0) {
+            return parent;
+        }
+
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : parent.nodes) {
+            if (node.isAnyDepth) {
+                nodes.add(node);
+            }
+
+            Node literalChild = node.literalChildren.get(name);
+            if (literalChild != null) {
+                nodes.add(literalChild);
+            }
+
+            for (int i = 0; i < node.globPatterns.size(); i++) {
+                if (node.globPatterns.get(i).matcher(name).matches()) {
+                    nodes.add(node.globChildren.get(i));
+                }
+            }
+        }
+
+        return nodes.isEmpty() ? Cursor.NONE : new Cursor(closure(nodes));
+    }
+
+    /**
+     * Whether the entry the cursor points at is excluded. Asks whether it is a directory only when a
+     * directory-only rule decides, so most entries are decided without a stat.
+     */
+    public boolean isIgnored(Cursor cursor, BooleanSupplier isDirectory) {
+        int anyRule = -1;
+        boolean isAnyNegated = false;
+        int directoryRule = -1;
+        boolean isDirectoryNegated = false;
+
+        for (Node node : cursor.nodes) {
+            if (node.anyRule > anyRule) {
+                anyRule = node.anyRule;
+                isAnyNegated = node.isAnyNegated;
+            }
+
+            if (node.directoryRule > directoryRule) {
+                directoryRule = node.directoryRule;
+                isDirectoryNegated = node.isDirectoryNegated;
+            }
+        }
+
+        if (directoryRule > anyRule && isDirectory.getAsBoolean()) {
+            return !isDirectoryNegated;
+        }
+
+        return anyRule >= 0 && !isAnyNegated;
+    }
+
+    /**
+     * Whether a path relative to the root, with either separator, is excluded by itself or through one
+     * of its folders.
+     */
+    public boolean isIgnored(String path, boolean isDirectory) {
+        if (isEmpty) {
+            return false;
+        }
+
+        String[] segments = path.split("[/\\\\]+");
+        int last = segments.length - 1;
+        while (last >= 0 && segments[last].isEmpty()) {
+            last--;
+        }
+
+        Cursor cursor = rootCursor;
+        for (int i = 0; i <= last; i++) {
+            if (segments[i].isEmpty()) {
+                continue;
+            }
+
+            cursor = enter(cursor, segments[i]);
+            if (cursor.nodes.length == 0) {
+                return false;
+            }
+
+            boolean isFolder = i < last || isDirectory;
+            if (isIgnored(cursor, () -> isFolder)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean addRule(String line, int ruleIndex) {
+        String pattern = line.stripTrailing();
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return false;
+        }
+
+        boolean isNegated = pattern.startsWith("!");
+        if (isNegated || pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+
+        boolean isDirectoryOnly = pattern.endsWith("/");
+        while (pattern.endsWith("/")) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+
+        boolean isAnchored = pattern.contains("/");
+        while (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+
+        if (pattern.isEmpty()) {
+            return false;
+        }
+
+        List<String> segments = new ArrayList<>();
+        if (!isAnchored) {
+            segments.add(ANY_DEPTH);
+        }
+
+        for (String segment : pattern.split("/+")) {
+            if (!(segment.equals(ANY_DEPTH) && !segments.isEmpty() && segments.get(segments.size() - 1).equals(ANY_DEPTH))) {
+                segments.add(segment);
+            }
+        }
+
+        // "folder/**" matches everything inside the folder but not the folder itself.
+        if (segments.size() > 1 && segments.get(segments.size() - 1).equals(ANY_DEPTH)) {
+            segments.add(segments.size() - 1, "*");
+        }
+
+        Node node = root;
+        for (String segment : segments) {
+            node = node.getChild(segment);
+        }
+
+        if (isDirectoryOnly) {
+            node.directoryRule = ruleIndex;
+            node.isDirectoryNegated = isNegated;
+        } else {
+            node.anyRule = ruleIndex;
+            node.isAnyNegated = isNegated;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds the nodes reachable without consuming a segment, i.e. through "**" matching zero segments.
+     */
+    private static Node[] closure(List<Node> nodes) {
+        List<Node> closed = new ArrayList<>(nodes.size() + 2);
+        for (Node node : nodes) {
+            for (Node current = node; current != null && !containsNode(closed, current); current = current.anyDepthChild) {
+                closed.add(current);
+            }
+        }
+
+        return closed.toArray(new Node[0]);
+    }
+
+    private static boolean containsNode(List<Node> nodes, Node node) {
+        for (Node candidate : nodes) {
+            if (candidate == node) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isGlob(String segment) {
+        return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('[') >= 0;
+    }
+
+    private static String unescape(String segment) {
+        StringBuilder literal = new StringBuilder(segment.length());
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\' && i + 1 < segment.length()) {
+                c = segment.charAt(++i);
+            }
+
+            literal.append(c);
+        }
+
+        return literal.toString();
+    }
+
+    static Pattern compileGlob(String segment) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (i + 1 < segment.length()) {
+                        regex.append(Pattern.quote(String.valueOf(segment.charAt(++i))));
+                    }
+                    break;
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    int end = segment.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+
+                    String characterClass = segment.substring(i + 1, end).replace("\\", "\\\\").replace("[", "\\[");
+                    if (characterClass.startsWith("!")) {
+                        characterClass = "^" + characterClass.substring(1);
+                    }
+
+                    regex.append('[').append(characterClass).append(']');
+                    i = end;
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Position of one directory or file in the rules' trie. Cursors are immutable and can be shared.
+     */
+    public static final class Cursor {
+        private static final Cursor NONE = new Cursor(new Node[0]);
+        private final Node[] nodes;
+
+        private Cursor(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        /**
+         * Whether no rule can match this entry or anything below it, so its subtree needs no matching.
+         */
+        public boolean isUnconstrained() {
+            return nodes.length == 0;
+        }
+    }
+
+    private static class Node {
+        private final boolean isAnyDepth;
+        private final Map<String, Node> literalChildren;
+        private final List<String> globSources;
+        private final List<Pattern> globPatterns;
+        private final List<Node> globChildren;
+        private Node anyDepthChild;
+        private int anyRule = -1;
+        private boolean isAnyNegated;
+        private int directoryRule = -1;
+        private boolean isDirectoryNegated;
+
+        private Node(boolean isAnyDepth) {
+            this.isAnyDepth = isAnyDepth;
+            this.literalChildren = new HashMap<>();
+            this.globSources = new ArrayList<>();
+            this.globPatterns = new ArrayList<>();
+            this.globChildren = new ArrayList<>();
+        }
+
+        private Node getChild(String segment) {
+            if (segment.equals(ANY_DEPTH)) {
+                if (anyDepthChild == null) {
+                    anyDepthChild = new Node(true);
+                }
+
+                return anyDepthChild;
+            }
+
+            if (!isGlob(segment)) {
+                return literalChildren.computeIfAbsent(unescape(segment), k -> new Node(false));
+            }
+
+            int index = globSources.indexOf(segment);
+            if (index < 0) {
+                globSources.add(segment);
+                globPatterns.add(compileGlob(segment));
+                globChildren.add(new Node(false));
+                index = globChildren.size() - 1;
+            }
+
+            return globChildren.get(index);
+        }
+    }
+}
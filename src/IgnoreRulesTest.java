@@ -0,0 +1,239 @@
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IgnoreRulesTest {
+    private static IgnoreRules rules(String... lines) {
+        return new IgnoreRules(Arrays.asList(lines));
+    }
+
+    @Test
+    public void testUnanchoredPatternsMatchAtAnyDepth() {
+        IgnoreRules ignoreRules = rules("# comment", "", "node_modules", "*.tmp");
+
+        assertTrue(ignoreRules.isIgnored("node_modules", true));
+        assertTrue(ignoreRules.isIgnored("web/app/node_modules/lib/index.js", false));
+        assertTrue(ignoreRules.isIgnored("a\\b\\draft.tmp", false));
+        assertFalse(ignoreRules.isIgnored("web/app/index.js", false));
+        assertFalse(ignoreRules.isIgnored("tmp", false));
+    }
+
+    @Test
+    public void testAnchoredAndDirectoryOnlyPatterns() {
+        IgnoreRules ignoreRules = rules("/build", "docs/drafts", "cache/");
+
+        assertTrue(ignoreRules.isIgnored("build", true));
+        assertFalse(ignoreRules.isIgnored("src/build", true));
+        assertTrue(ignoreRules.isIgnored("docs/drafts/plan.txt", false));
+        assertFalse(ignoreRules.isIgnored("other/docs/drafts", true));
+        assertTrue(ignoreRules.isIgnored("src/cache", true));
+        assertTrue(ignoreRules.isIgnored("src/cache/entry", false));
+        assertFalse(ignoreRules.isIgnored("src/cache", false));
+    }
+
+    @Test
+    public void testDoubleStar() {
+        IgnoreRules ignoreRules = rules("logs/**", "a/**/b", "**/generated");
+
+        assertFalse(ignoreRules.isIgnored("logs", true));
+        assertTrue(ignoreRules.isIgnored("logs/today.log", false));
+        assertTrue(ignoreRules.isIgnored("logs/2024/01/today.log", false));
+        assertTrue(ignoreRules.isIgnored("a/b", false));
+        assertTrue(ignoreRules.isIgnored("a/x/y/b", false));
+        assertFalse(ignoreRules.isIgnored("a/x/c", false));
+        assertTrue(ignoreRules.isIgnored("src/main/generated/Parser.java", false));
+    }
+
+    @Test
+    public void testNegationAndSelectiveSync() {
+        IgnoreRules ignoreRules = rules("*.log", "!keep.log", "/*", "!/projects/", "!" + IgnoreRules.FILENAME);
+
+        assertTrue(ignoreRules.isIgnored("trace.log", false));
+        assertTrue(ignoreRules.isIgnored("photos", true));
+        assertFalse(ignoreRules.isIgnored("projects", true));
+        assertFalse(ignoreRules.isIgnored("projects/report.txt", false));
+        assertTrue(ignoreRules.isIgnored("projects/debug.log", false));
+        assertFalse(ignoreRules.isIgnored("projects/keep.log", false));
+        assertFalse(ignoreRules.isIgnored(IgnoreRules.FILENAME, false));
+    }
+
+    @Test
+    public void testGlobs() {
+        IgnoreRules ignoreRules = rules("file-?.txt", "[0-9]*.bin", "[!a]x", "\\#literal", "a\\*b");
+
+        assertTrue(ignoreRules.isIgnored("file-1.txt", false));
+        assertFalse(ignoreRules.isIgnored("file-10.txt", false));
+        assertTrue(ignoreRules.isIgnored("7zip.bin", false));
+        assertFalse(ignoreRules.isIgnored("zip.bin", false));
+        assertTrue(ignoreRules.isIgnored("bx", false));
+        assertFalse(ignoreRules.isIgnored("ax", false));
+        assertTrue(ignoreRules.isIgnored("#literal", false));
+        assertTrue(ignoreRules.isIgnored("a*b", false));
+        assertFalse(ignoreRules.isIgnored("axb", false));
+    }
+
+    @Test
+    public void testCursorsSkipMatchingBelowUnconstrainedFolders() {
+        IgnoreRules ignoreRules = rules("/build/", "/docs/*.tmp");
+        IgnoreRules.Cursor root = ignoreRules.getRoot();
+
+        IgnoreRules.Cursor src = ignoreRules.enter(root, "src");
+        assertTrue(src.isUnconstrained());
+        assertFalse(ignoreRules.isIgnored(src, () -> fail("No directory-only rule applies")));
+
+        IgnoreRules.Cursor docs = ignoreRules.enter(root, "docs");
+        assertFalse(docs.isUnconstrained());
+        assertTrue(ignoreRules.isIgnored(ignoreRules.enter(docs, "a.tmp"), () -> false));
+
+        assertTrue(ignoreRules.isIgnored(ignoreRules.enter(root, "build"), () -> true));
+        assertFalse(ignoreRules.isIgnored(ignoreRules.enter(root, "build"), () -> false));
+    }
+
+    @Test
+    public void testEmptyRules() {
+        assertTrue(IgnoreRules.empty().isEmpty());
+        assertTrue(IgnoreRules.empty().getRoot().isUnconstrained());
+        assertFalse(IgnoreRules.empty().isIgnored("anything/at/all", false));
+    }
+
+    @Test
+    public void testSelectiveSyncStaysOnTheClient() throws Exception {
+        File serverDirectory = Files.createTempDirectory("ignore-rules-test-server").toFile();
+        File clientDirectory = Files.createTempDirectory("ignore-rules-test-client").toFile();
+        int port = getFreePort();
+        Server server = startServer(port, serverDirectory);
+
+        try (Socket socket = connect(port)) {
+            write(new File(clientDirectory, IgnoreRules.FILENAME), "/drafts/\n");
+            new File(clientDirectory, "drafts").mkdir();
+            write(new File(clientDirectory, "drafts/a.txt"), "draft");
+            write(new File(clientDirectory, "b.txt"), "b");
+            write(new File(serverDirectory, IgnoreRules.FILENAME), "/*\n");
+
+            ServerThread serverThread = new ServerThread(socket, clientDirectory.getPath() + File.separator);
+            serverThread.compareServerFiles();
+            serverThread.startPipeline();
+            serverThread.checkForChanges();
+
+            // Another client's rules on the server neither replace nor remove this client's.
+            awaitTrue(() -> new File(serverDirectory, "b.txt").isFile());
+            serverThread.stopPipeline();
+            assertEquals("/drafts/\n", read(new File(clientDirectory, IgnoreRules.FILENAME)));
+            assertEquals("/*\n", read(new File(serverDirectory, IgnoreRules.FILENAME)));
+            assertFalse(new File(serverDirectory, "drafts").exists());
+            assertEquals(List.of(IgnoreRules.FILENAME, "b.txt"), sortedNames(serverDirectory));
+        } finally {
+            server.stop();
+            delete(serverDirectory);
+            delete(clientDirectory);
+        }
+    }
+
+    @Test
+    public void testServerRulesComeFromAdminFile() throws Exception {
+        File serverDirectory = Files.createTempDirectory("ignore-rules-test-server").toFile();
+        write(new File(serverDirectory, IgnoreRules.SERVER_FILENAME), "*.bak\n");
+        write(new File(serverDirectory, IgnoreRules.FILENAME), "*.txt\n");
+        write(new File(serverDirectory, "a.txt"), "a");
+        write(new File(serverDirectory, "a.bak"), "a");
+        int port = getFreePort();
+        Server server = startServer(port, serverDirectory);
+
+        try (Socket socket = connect(port)) {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
+
+            // Clients can neither overwrite the admin file nor see it.
+            objectOutputStream.writeObject("UPLOAD");
+            objectOutputStream.writeObject(IgnoreRules.SERVER_FILENAME);
+            objectOutputStream.writeLong(0);
+            objectOutputStream.flush();
+            assertFalse(objectInputStream.readBoolean());
+
+            objectOutputStream.writeObject("LIST");
+            objectOutputStream.writeObject("");
+            objectOutputStream.flush();
+
+            List<String> entries = new ArrayList<>();
+            String entry;
+            while (!(entry = (String) objectInputStream.readObject()).equals("LIST_END")) {
+                entries.add(entry);
+            }
+
+            assertEquals(List.of("FILE " + IgnoreRules.FILENAME, "FILE a.txt"), entries);
+            assertEquals("*.bak\n", read(new File(serverDirectory, IgnoreRules.SERVER_FILENAME)));
+        } finally {
+            server.stop();
+            delete(serverDirectory);
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static Server startServer(int port, File serverDirectory) {
+        Server server = new Server(port);
+        Thread thread = new Thread(() -> server.start(serverDirectory.getPath() + File.separator));
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private static Socket connect(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    private static List<String> sortedNames(File directory) {
+        List<String> names = new ArrayList<>(Arrays.asList(directory.list()));
+        names.sort(null);
+        return names;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,217 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackedStoreTest {
+    private File directory;
+    private PackedStore packedStore;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("packed-store-test").toFile();
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        packedStore.close();
+
+        File[] segments = new File(directory, PackedStore.DIRECTORY_NAME).listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+
+        new File(directory, PackedStore.DIRECTORY_NAME).delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testPutReadOverwriteAndRemove() throws IOException {
+        assertTrue(packedStore.accepts(1024));
+        assertFalse(packedStore.accepts(1025));
+        assertNull(packedStore.read("/a.txt"));
+        assertEquals(-1, packedStore.getLength("/a.txt"));
+
+        put("/a.txt", "first");
+        put("/b.txt", "");
+        assertEquals("first", read("/a.txt"));
+        assertEquals("", read("/b.txt"));
+
+        put("/a.txt", "second version");
+        assertEquals("second version", read("/a.txt"));
+        assertEquals(14, packedStore.getLength("/a.txt"));
+        assertTrue(packedStore.getDeadBytes() > 0);
+
+        assertTrue(packedStore.remove("/a.txt"));
+        assertFalse(packedStore.remove("/a.txt"));
+        assertFalse(packedStore.contains("/a.txt"));
+        assertArrayEquals(new Object[]{"/b.txt"}, packedStore.getNames().toArray());
+    }
+
+    @Test
+    public void testReopenReplaysSegments() throws IOException {
+        put("/kept.txt", "kept");
+        put("/overwritten.txt", "old");
+        put("/overwritten.txt", "new");
+        put("/removed.txt", "gone");
+        packedStore.remove("/removed.txt");
+
+        packedStore.close();
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+
+        assertEquals(2, packedStore.getEntryCount());
+        assertEquals("kept", read("/kept.txt"));
+        assertEquals("new", read("/overwritten.txt"));
+        assertFalse(packedStore.contains("/removed.txt"));
+    }
+
+    @Test
+    public void testReopenTruncatesTornRecord() throws IOException {
+        put("/complete.txt", "complete");
+        put("/torn.txt", "this record loses its last bytes");
+        packedStore.close();
+
+        File segment = new File(directory, PackedStore.DIRECTORY_NAME).listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+        assertEquals("complete", read("/complete.txt"));
+        assertFalse(packedStore.contains("/torn.txt"));
+
+        // New records go where the torn one was cut off.
+        put("/after.txt", "after");
+        packedStore.close();
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+        assertEquals("after", read("/after.txt"));
+    }
+
+    @Test
+    public void testCompactionReclaimsDeadSegments() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 20; i++) {
+            packedStore.put("/file" + (i % 4) + ".bin", data, data.length);
+        }
+
+        int segmentCount = packedStore.getSegmentCount();
+        assertTrue(segmentCount > 2, "segments " + segmentCount);
+
+        packedStore.compact();
+        assertTrue(packedStore.getCompactionCount() > 0);
+        assertTrue(packedStore.getSegmentCount() < segmentCount);
+        assertEquals(4, packedStore.getEntryCount());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(data, packedStore.read("/file" + i + ".bin"));
+        }
+
+        packedStore.close();
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+        assertEquals(4, packedStore.getEntryCount());
+    }
+
+    @Test
+    public void testCompactionKeepsTombstoneShadowingOlderSegment() throws IOException {
+        // Segment 1: the removed file and enough live data that it is not worth compacting.
+        put("/removed.txt", "removed");
+        byte[] data = new byte[1000];
+        for (int i = 0; packedStore.getSegmentCount() == 1; i++) {
+            packedStore.put("/live" + i + ".bin", data, data.length);
+        }
+
+        // Segment 2: the tombstone and mostly overwritten records, so it is compacted.
+        packedStore.remove("/removed.txt");
+        while (packedStore.getSegmentCount() == 2) {
+            packedStore.put("/overwritten.bin", data, data.length);
+        }
+
+        packedStore.compact();
+        assertEquals(1, packedStore.getCompactionCount());
+        assertEquals(2, packedStore.getSegmentCount());
+
+        packedStore.close();
+        packedStore = PackedStore.open(directory.getPath() + File.separator, 1024, 4096);
+        assertFalse(packedStore.contains("/removed.txt"));
+        assertArrayEquals(data, packedStore.read("/overwritten.bin"));
+    }
+
+    @Test
+    public void testRulesFilesAreNotPacked() throws Exception {
+        packedStore.close();
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        Server server = new Server(port);
+        server.setPackThreshold(1024);
+        new Thread(() -> server.start(directory.getPath() + File.separator)).start();
+
+        try (Socket socket = connect(port)) {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
+            assertTrue(upload(objectOutputStream, objectInputStream, IgnoreRules.FILENAME, "*.tmp\n"));
+            assertTrue(upload(objectOutputStream, objectInputStream, "a.txt", "a"));
+
+            assertEquals("*.tmp\n", new String(Files.readAllBytes(new File(directory, IgnoreRules.FILENAME).toPath()), StandardCharsets.UTF_8));
+            assertFalse(server.getPackedStore().contains(IgnoreRules.FILENAME));
+            assertTrue(server.getPackedStore().contains("a.txt"));
+            assertFalse(new File(directory, "a.txt").exists());
+        } finally {
+            server.stop();
+            packedStore = server.getPackedStore();
+            new File(directory, IgnoreRules.FILENAME).delete();
+        }
+    }
+
+    @Test
+    public void testRemoveFolder() throws IOException {
+        put("/docs/a.txt", "a");
+        put("/docs/sub/b.txt", "b");
+        put("/docs2/c.txt", "c");
+
+        assertEquals(2, packedStore.removeFolder("/docs"));
+        assertArrayEquals(new Object[]{"/docs2/c.txt"}, packedStore.getNames().toArray());
+    }
+
+    private void put(String name, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        packedStore.put(name, data, data.length);
+    }
+
+    private static boolean upload(ObjectOutputStream objectOutputStream, ObjectInputStream objectInputStream, String filename, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        objectOutputStream.writeObject("UPLOAD");
+        objectOutputStream.writeObject(filename);
+        objectOutputStream.writeLong(data.length);
+        objectOutputStream.write(data);
+        objectOutputStream.flush();
+        return objectInputStream.readBoolean();
+    }
+
+    private static Socket connect(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private String read(String name) throws IOException {
+        return new String(packedStore.read(name), StandardCharsets.UTF_8);
+    }
+}
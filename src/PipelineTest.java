@@ -0,0 +1,245 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelineTest {
+    private static final long TIMEOUT_MILLIS = 20000;
+    // Above the client's large file threshold; at the client's limit below its upload takes about three seconds.
+    private static final int LARGE_FILE_BYTES = 9 * 1024 * 1024;
+    private static final long CLIENT_BYTES_PER_SECOND = 3 * 1024 * 1024;
+    private File serverDirectory;
+    private File clientDirectory;
+    private Server server;
+    private Socket socket;
+    private ServerThread serverThread;
+
+    @Before
+    public void setUp() throws Exception {
+        serverDirectory = Files.createTempDirectory("pipeline-test-server").toFile();
+        clientDirectory = Files.createTempDirectory("pipeline-test-client").toFile();
+
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        server = new Server(port, 0, CLIENT_BYTES_PER_SECOND);
+        Thread thread = new Thread(() -> server.start(serverDirectory.getPath() + File.separator));
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (socket == null) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(50);
+            }
+        }
+
+        // New files are uploaded on the first scan that sees them.
+        System.setProperty("filesync.quiescenceMillis", "0");
+        try {
+            serverThread = new ServerThread(socket, clientDirectory.getPath() + File.separator);
+        } finally {
+            System.clearProperty("filesync.quiescenceMillis");
+        }
+
+        serverThread.startPipeline();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverThread.stopPipeline();
+        socket.close();
+        server.stop();
+        delete(serverDirectory);
+        delete(clientDirectory);
+    }
+
+    @Test
+    public void testFullQueueBlocksProducer() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PipelineStage<String> stage = new PipelineStage<>("test", 1);
+        stage.start(1, () -> task -> release.await());
+
+        try {
+            stage.put("first");
+            awaitTrue(() -> stage.getInFlight() == 1);
+            stage.put("second");
+
+            Thread producer = new Thread(() -> {
+                try {
+                    stage.put("third");
+                } catch (InterruptedException ignored) {
+                }
+            });
+            producer.start();
+            producer.join(200);
+            assertTrue(producer.isAlive());
+            assertEquals(1, stage.getQueueDepth());
+
+            release.countDown();
+            producer.join(TIMEOUT_MILLIS);
+            awaitTrue(() -> stage.getCompleted() == 3);
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void testWorkerIsReplacedAfterUncheckedException() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        PipelineStage<String> stage = new PipelineStage<>("test", 4);
+        stage.start(1, () -> {
+            created.incrementAndGet();
+            return task -> {
+                if (task.equals("fail")) {
+                    throw new IllegalStateException("unchecked");
+                }
+            };
+        });
+
+        try {
+            stage.put("fail");
+            stage.put("succeed");
+
+            awaitTrue(() -> stage.getCompleted() == 1);
+            assertEquals(1, stage.getFailed());
+            assertEquals(2, created.get());
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void testSmallFilePropagatesDuringLargeUpload() throws Exception {
+        Files.write(new File(clientDirectory, "large.bin").toPath(), new byte[LARGE_FILE_BYTES]);
+        serverThread.checkForChanges();
+        File largeServerFile = new File(serverDirectory, "large.bin");
+        awaitTrue(() -> largeServerFile.length() > 0);
+
+        Files.write(new File(clientDirectory, "small.txt").toPath(), "small".getBytes(StandardCharsets.UTF_8));
+        serverThread.checkForChanges();
+
+        // The small file takes its own pool and goes ahead of the bulk transfer in the server's scheduler.
+        File smallServerFile = new File(serverDirectory, "small.txt");
+        awaitTrue(() -> "small".equals(read(smallServerFile)));
+        assertEquals(1, getStage("large-uploads").getInFlight());
+
+        awaitTrue(() -> getStage("large-uploads").getCompleted() == 1);
+        assertEquals(LARGE_FILE_BYTES, largeServerFile.length());
+    }
+
+    @Test
+    public void testOwnUploadsAreNotEchoed() throws Exception {
+        Socket observerSocket = new Socket("localhost", socket.getPort());
+        try {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(observerSocket.getOutputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(observerSocket.getInputStream());
+            // A round trip makes sure the server registered the observer before the upload.
+            objectOutputStream.writeObject("SEQUENCE");
+            objectOutputStream.writeObject("");
+            objectOutputStream.flush();
+            objectInputStream.readLong();
+
+            Files.write(new File(clientDirectory, "a.txt").toPath(), "a".getBytes(StandardCharsets.UTF_8));
+            serverThread.checkForChanges();
+            awaitTrue(() -> getStage("small-uploads").getCompleted() == 1);
+
+            // The upload went over an attached transfer connection, yet only the other client hears of it.
+            assertEquals(List.of(), serverThread.getStackedChanges());
+
+            objectOutputStream.writeObject("STACKED_CHANGES");
+            objectOutputStream.writeObject("");
+            objectOutputStream.flush();
+            List<String> stackedChanges = new ArrayList<>();
+            String stackedChange;
+            while (!(stackedChange = (String) objectInputStream.readObject()).equals("STACKED_CHANGES_END")) {
+                stackedChanges.add(stackedChange);
+            }
+
+            assertEquals(1, stackedChanges.size());
+            assertTrue(stackedChanges.get(0).startsWith("DOWNLOAD "));
+            assertTrue(stackedChanges.get(0).endsWith(" a.txt"));
+        } finally {
+            observerSocket.close();
+        }
+    }
+
+    @Test
+    public void testDeleteWaitsForUploadWithoutBlockingScan() throws Exception {
+        File folder = new File(clientDirectory, "folder");
+        folder.mkdir();
+        File largeFile = new File(folder, "large.bin");
+        Files.write(largeFile.toPath(), new byte[LARGE_FILE_BYTES]);
+
+        serverThread.checkForChanges();
+        File serverFile = new File(serverDirectory, "folder" + File.separator + "large.bin");
+        awaitTrue(() -> serverFile.length() > 0);
+
+        // Deleted while the upload is still running; the scan hands the deletions on instead of waiting.
+        largeFile.delete();
+        folder.delete();
+        long startedAt = System.currentTimeMillis();
+        serverThread.checkForChanges();
+        assertTrue(System.currentTimeMillis() - startedAt < 1000, "scan waited for the upload");
+        assertEquals(1, getStage("large-uploads").getInFlight());
+
+        // Folder creation and both deletions, each sent only after the upload was stored.
+        awaitTrue(() -> getStage("metadata").getCompleted() == 3);
+        assertEquals(1, getStage("large-uploads").getCompleted());
+        assertFalse(new File(serverDirectory, "folder").exists());
+    }
+
+    private PipelineStage<?> getStage(String name) {
+        for (PipelineStage<?> stage : serverThread.getPipelineStages()) {
+            if (stage.getName().equals(name)) {
+                return stage;
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    private static String read(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
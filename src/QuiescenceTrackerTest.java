@@ -0,0 +1,77 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuiescenceTrackerTest {
+    private static final long QUIESCENCE_MILLIS = 1000;
+    private File file;
+    private QuiescenceTracker quiescenceTracker;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("quiescence-test", ".txt");
+        quiescenceTracker = new QuiescenceTracker(QUIESCENCE_MILLIS, false);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecentlyWrittenFileIsHeldBack() throws IOException {
+        append("first");
+        long lastModified = file.lastModified();
+
+        assertFalse(quiescenceTracker.isQuiescent("a.txt", file, lastModified + QUIESCENCE_MILLIS / 2));
+        assertTrue(quiescenceTracker.isPending("a.txt"));
+        assertEquals(1, quiescenceTracker.getPendingCount());
+    }
+
+    @Test
+    public void testStableFileIsReleasedAfterWindow() throws IOException {
+        append("first");
+        long lastModified = file.lastModified();
+
+        assertFalse(quiescenceTracker.isQuiescent("a.txt", file, lastModified + QUIESCENCE_MILLIS / 2));
+        assertTrue(quiescenceTracker.isQuiescent("a.txt", file, lastModified + QUIESCENCE_MILLIS));
+        assertFalse(quiescenceTracker.isPending("a.txt"));
+    }
+
+    @Test
+    public void testGrowingFileIsHeldBackEvenWithOldTimestamp() throws IOException {
+        append("first");
+        long lastModified = file.lastModified();
+        assertFalse(quiescenceTracker.isQuiescent("a.txt", file, lastModified + QUIESCENCE_MILLIS / 2));
+
+        // Coarse timestamps may not move on a write; the size still shows the file is growing.
+        append(" and more");
+        file.setLastModified(lastModified);
+        long now = lastModified + 2 * QUIESCENCE_MILLIS;
+
+        assertFalse(quiescenceTracker.isQuiescent("a.txt", file, now));
+        assertTrue(quiescenceTracker.isQuiescent("a.txt", file, now));
+    }
+
+    @Test
+    public void testForgetDropsPendingFile() throws IOException {
+        append("first");
+        assertFalse(quiescenceTracker.isQuiescent("a.txt", file, file.lastModified()));
+
+        quiescenceTracker.forget("a.txt");
+        assertFalse(quiescenceTracker.isPending("a.txt"));
+    }
+
+    private void append(String content) throws IOException {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file, true)) {
+            fileOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+    private final List<Server> servers = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private File primaryDirectory;
+    private File replicaDirectory;
+    private int primaryPort;
+    private int replicaPort;
+    private Connection primary;
+
+    @Before
+    public void setUp() throws Exception {
+        primaryDirectory = Files.createTempDirectory("replication-test-primary").toFile();
+        replicaDirectory = Files.createTempDirectory("replication-test-replica").toFile();
+        primaryPort = getFreePort();
+        replicaPort = getFreePort();
+
+        startServer(new Server(primaryPort), primaryDirectory, primaryPort);
+        primary = connect(primaryPort);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        for (Server server : servers) {
+            server.stop();
+        }
+
+        delete(primaryDirectory);
+        delete(replicaDirectory);
+    }
+
+    @Test
+    public void testResyncMirrorsThePrimary() throws Exception {
+        primary.upload("a.txt", "first");
+        new File(replicaDirectory, "stale.txt").createNewFile();
+
+        Server replica = startReplica();
+        awaitTrue(() -> replica.getReplicationSequence() >= 1);
+
+        assertEquals("first", read(new File(replicaDirectory, "a.txt")));
+        assertFalse(new File(replicaDirectory, "stale.txt").exists());
+        awaitTrue(() -> replica.getReplicationLagMillis() == 0);
+
+        // Downloads are staged in the replica's own folder, which its listing leaves out.
+        assertTrue(new File(replicaDirectory, ReplicaFollower.STAGING_DIRECTORY_NAME).isDirectory());
+        assertEquals(List.of("FILE a.txt"), connect(replicaPort).list());
+    }
+
+    @Test
+    public void testReplicaFollowsChanges() throws Exception {
+        primary.upload("a.txt", "first");
+        Server replica = startReplica();
+        awaitTrue(() -> replica.getReplicationSequence() >= 1);
+
+        primary.upload("a.txt", "second");
+        primary.upload("b.txt", "new");
+        primary.delete("b.txt");
+        long headSequence = primary.readSequence();
+
+        awaitTrue(() -> replica.getReplicationSequence() >= headSequence);
+        assertEquals("second", read(new File(replicaDirectory, "a.txt")));
+        assertFalse(new File(replicaDirectory, "b.txt").exists());
+        assertEquals(0, replica.getReplicationLagMillis());
+    }
+
+    @Test
+    public void testLaggingReplicaRefusesNewerChanges() throws Exception {
+        primary.upload("a.txt", "first");
+        Server replica = startReplica();
+        awaitTrue(() -> replica.getReplicationSequence() >= 1);
+
+        Connection replicaConnection = connect(replicaPort);
+        long appliedSequence = replicaConnection.readSequence();
+        assertEquals("first", replicaConnection.downloadSince(appliedSequence, "a.txt"));
+
+        // A change the replica has not applied yet: the client must fall back to the primary.
+        assertNull(replicaConnection.downloadSince(appliedSequence + 1, "a.txt"));
+        assertEquals("first", primary.downloadSince(appliedSequence, "a.txt"));
+    }
+
+    @Test
+    public void testLagGrowsWithoutPrimary() throws Exception {
+        Server replica = new Server(replicaPort);
+        replica.followPrimary("localhost", getFreePort(), "localhost:" + replicaPort, replicaDirectory.getPath() + File.separator);
+        servers.add(replica);
+
+        Thread.sleep(200);
+        assertTrue(replica.getReplicationLagMillis() >= 200);
+        assertEquals(-1, replica.getReplicationSequence());
+    }
+
+    private Server startReplica() throws Exception {
+        Server replica = new Server(replicaPort);
+        replica.followPrimary("localhost", primaryPort, "localhost:" + replicaPort, replicaDirectory.getPath() + File.separator);
+        startServer(replica, replicaDirectory, replicaPort);
+        return replica;
+    }
+
+    private void startServer(Server server, File directory, int port) throws Exception {
+        servers.add(server);
+        Thread thread = new Thread(() -> server.start(directory.getPath() + File.separator));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitTrue(() -> {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private Connection connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        sockets.add(socket);
+        return new Connection(socket);
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static class Connection {
+        private final ObjectOutputStream objectOutputStream;
+        private final ObjectInputStream objectInputStream;
+
+        private Connection(Socket socket) throws IOException {
+            this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            this.objectInputStream = new ObjectInputStream(socket.getInputStream());
+        }
+
+        private void send(String command, String argument) throws IOException {
+            objectOutputStream.writeObject(command);
+            objectOutputStream.writeObject(argument);
+            objectOutputStream.flush();
+        }
+
+        private void upload(String filename, String content) throws IOException {
+            byte[] data = content.getBytes(StandardCharsets.UTF_8);
+            send("UPLOAD", filename);
+            objectOutputStream.writeLong(data.length);
+            objectOutputStream.write(data);
+            objectOutputStream.flush();
+            assertTrue(objectInputStream.readBoolean());
+        }
+
+        private void delete(String filename) throws IOException {
+            send("DELETE", filename);
+            assertTrue(objectInputStream.readBoolean());
+        }
+
+        private long readSequence() throws IOException {
+            send("SEQUENCE", "");
+            return objectInputStream.readLong();
+        }
+
+        private String downloadSince(long sequence, String filename) throws IOException {
+            send("DOWNLOAD_SINCE", sequence + " " + filename);
+            long size = objectInputStream.readLong();
+            if (size < 0) {
+                return null;
+            }
+
+            byte[] data = new byte[(int) size];
+            objectInputStream.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+
+        private List<String> list() throws IOException, ClassNotFoundException {
+            send("LIST", "");
+
+            List<String> entries = new ArrayList<>();
+            String entry;
+            while (!(entry = (String) objectInputStream.readObject()).equals("LIST_END")) {
+                entries.add(entry);
+            }
+
+            return entries;
+        }
+    }
+}
@@ -1,19 +1,115 @@
+import javax.management.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 public class Server {
     private static final int PORT = 5656;
+    private final int port;
     private final Map<Integer, ClientSocketObject> clientSockets;
+    private final ReplicationLog replicationLog;
+    private final ServerMetrics metrics;
+    private final TransferScheduler transferScheduler;
     private ServerSocket serverSocket;
+    private ObjectName statsObjectName;
+    private ReplicaFollower replicaFollower;
+    private long packThreshold;
+    private PackedStore packedStore;
+    private String adminToken;
 
     public Server() {
-        clientSockets = new HashMap<>();
+        this(PORT);
     }
 
+    public Server(int port) {
+        this(port, 0, 0);
+    }
+
+    /**
+     * @param maxBytesPerSecond       global transfer limit, 0 for unlimited
+     * @param maxClientBytesPerSecond transfer limit of each client, 0 for unlimited
+     */
+    public Server(int port, long maxBytesPerSecond, long maxClientBytesPerSecond) {
+        this.port = port;
+        this.clientSockets = new ConcurrentHashMap<>();
+        this.replicationLog = new ReplicationLog();
+        this.metrics = new ServerMetrics(this);
+        this.transferScheduler = new TransferScheduler(maxBytesPerSecond, maxClientBytesPerSecond);
+    }
+
+    /**
+     * Usage: java Server [--port &lt;port&gt;] [--dir &lt;directory&gt;] [--replica-of &lt;host:port&gt;] [--advertise &lt;host:port&gt;]
+     * [--max-rate &lt;bytes/s&gt;] [--client-rate &lt;bytes/s&gt;] [--pack-threshold &lt;bytes&gt;] [--admin-token &lt;token&gt;]
+     */
     public static void main(String[] args) {
-        Server server = new Server();
-        server.start();
+        int port = PORT;
+        String serverDirectory = System.getProperty("user.dir") + "\\server-files\\";
+        String primaryAddress = null;
+        String advertisedAddress = null;
+        long maxBytesPerSecond = 0;
+        long maxClientBytesPerSecond = 0;
+        long packThreshold = 0;
+        String adminToken = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--dir":
+                    serverDirectory = args[i + 1];
+                    break;
+                case "--replica-of":
+                    primaryAddress = args[i + 1];
+                    break;
+                case "--advertise":
+                    advertisedAddress = args[i + 1];
+                    break;
+                case "--max-rate":
+                    maxBytesPerSecond = Long.parseLong(args[i + 1]);
+                    break;
+                case "--client-rate":
+                    maxClientBytesPerSecond = Long.parseLong(args[i + 1]);
+                    break;
+                case "--pack-threshold":
+                    packThreshold = Long.parseLong(args[i + 1]);
+                    break;
+                case "--admin-token":
+                    adminToken = args[i + 1];
+                    break;
+            }
+        }
+
+        Server server = new Server(port, maxBytesPerSecond, maxClientBytesPerSecond);
+        server.setPackThreshold(packThreshold);
+        server.setAdminToken(adminToken);
+        if (primaryAddress != null) {
+            if (advertisedAddress == null) {
+                advertisedAddress = "localhost:" + port;
+            }
+
+            String[] primaryArguments = primaryAddress.split(":");
+            server.followPrimary(primaryArguments[0], Integer.parseInt(primaryArguments[1]), advertisedAddress, serverDirectory);
+        }
+
+        server.start(serverDirectory);
     }
 
     public void start() {
@@ -28,34 +124,188 @@ public class Server {
         }
 
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Server started. Listening on port " + PORT + "...");
+            // Replicas keep plain files: their follower writes the primary's files directly.
+            if (!isReplica() && (packThreshold > 0 || PackedStore.exists(serverDirectory))) {
+                packedStore = PackedStore.open(serverDirectory, packThreshold);
+            }
+
+            serverSocket = new ServerSocket(port);
+            registerStats();
+            ServerLog.info((isReplica() ? "Replica" : "Server") + " started. Listening on port " + port + "...");
 
             int currentSocketID = 1;
 
             while (true) {
                 Socket socket = serverSocket.accept();
+                // Replies are a few small writes; without this, Nagle's algorithm holds each one back until
+                // the client's delayed ACK, adding tens of milliseconds to every metadata command and small file.
+                socket.setTcpNoDelay(true);
                 ClientSocketObject clientSocketObject = new ClientSocketObject(currentSocketID, socket);
 
                 clientSockets.put(clientSocketObject.getId(), clientSocketObject);
-                System.out.println("New client connected: #" + clientSocketObject.getId() + " (" + socket.getInetAddress() + ")");
+                transferScheduler.addClient(clientSocketObject.getId());
+                ServerLog.info("New client connected: #" + clientSocketObject.getId() + " (" + socket.getInetAddress() + ")");
 
-                Thread thread = new Thread(new ClientHandler(clientSocketObject, this, serverDirectory));
+                // The handler reads the client's stream header when it is created, so do that on the client's
+                // own thread; a client that connects and never sends one must not block the accept loop.
+                Thread thread = new Thread(() -> handleClient(clientSocketObject, serverDirectory));
                 thread.start();
 
                 currentSocketID++;
             }
         } catch (ConnectException e) {
-            System.out.println("Could not start server.");
+            ServerLog.error("Could not start server.");
         } catch (IOException e) {
+            // Closing the server socket from stop() ends the accept loop.
+            if (serverSocket != null && serverSocket.isClosed()) {
+                return;
+            }
+
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Turns this server into a read-only replica that follows the mutations of the given primary.
+     * Must be called before {@link #start(String)}.
+     */
+    public void followPrimary(String primaryHost, int primaryPort, String advertisedAddress, String serverDirectory) {
+        File file = new File(serverDirectory);
+        if (!file.exists()) {
+            file.mkdirs();
+        }
+
+        replicaFollower = new ReplicaFollower(primaryHost, primaryPort, advertisedAddress, serverDirectory);
+        Thread thread = new Thread(replicaFollower);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Packs uploaded files up to the given size into segment files instead of storing each as a plain
+     * file; 0 disables packing. Must be called before {@link #start(String)}.
+     */
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Sets the token that LIMIT commands must carry. Without one, LIMIT is refused and limits can only
+     * be changed over JMX.
+     */
+    public void setAdminToken(String adminToken) {
+        this.adminToken = adminToken;
+    }
+
+    public boolean isAdminToken(String token) {
+        return adminToken != null && MessageDigest.isEqual(
+                adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleClient(ClientSocketObject clientSocketObject, String serverDirectory) {
+        ClientHandler clientHandler;
+        try {
+            clientHandler = new ClientHandler(clientSocketObject, this, serverDirectory);
+        } catch (IOException e) {
+            ServerLog.error("Client #" + clientSocketObject.getId() + " - Could not open connection: " + e.getMessage());
+            removeClient(clientSocketObject.getId());
+
+            try {
+                clientSocketObject.getSocket().close();
+            } catch (IOException ignored) {
+            }
+
+            return;
+        }
+
+        clientHandler.run();
+    }
+
+    /**
+     * Exposes the server's metrics as the JMX bean FileSyncTM:type=Server,port=&lt;port&gt;.
+     */
+    private void registerStats() {
+        try {
+            statsObjectName = new ObjectName("FileSyncTM:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerStats(metrics, transferScheduler), statsObjectName);
+        } catch (JMException e) {
+            ServerLog.error("Could not register JMX stats: " + e.getMessage());
+            statsObjectName = null;
+        }
+    }
+
     public void stop() throws IOException {
+        if (replicaFollower != null) {
+            replicaFollower.stop();
+        }
+
+        if (statsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsObjectName);
+            } catch (JMException ignored) {
+            }
+
+            statsObjectName = null;
+        }
+
         if (serverSocket != null) {
             serverSocket.close();
         }
+
+        if (packedStore != null) {
+            packedStore.close();
+        }
+    }
+
+    public boolean isReplica() {
+        return replicaFollower != null;
+    }
+
+    public ReplicationLog getReplicationLog() {
+        return replicationLog;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * The packed small-file store, or null when the server stores plain files only.
+     */
+    public PackedStore getPackedStore() {
+        return packedStore;
+    }
+
+    /**
+     * The replication log position this server's files reflect: the head of its own log on a primary,
+     * the last applied entry of the primary's log on a replica, or -1 while a replica has not synced.
+     */
+    public long getReplicationSequence() {
+        return replicaFollower != null ? replicaFollower.getAppliedSequence() : replicationLog.getHeadSequence();
+    }
+
+    /**
+     * Milliseconds the oldest mutation not yet applied by this replica has been waiting on the primary.
+     * While the replica is disconnected or resyncing, counts from the last moment it knew it was current.
+     * Always 0 on a primary.
+     */
+    public long getReplicationLagMillis() {
+        return replicaFollower != null ? replicaFollower.getLagMillis() : 0;
+    }
+
+    public List<String> getReplicaAddresses() {
+        List<String> replicaAddresses = new ArrayList<>();
+        for (ClientSocketObject clientSocketObject : getClients().values()) {
+            if (clientSocketObject.getReplicaAddress() != null) {
+                replicaAddresses.add(clientSocketObject.getReplicaAddress());
+            }
+        }
+
+        return replicaAddresses;
     }
 
     public Map<Integer, ClientSocketObject> getClients() {
@@ -77,8 +327,44 @@ public class Server {
         return otherClients;
     }
 
+    /**
+     * Whether an entry in the root of the server directory belongs to the server itself rather than to the
+     * synced tree. Such entries are never listed, written by clients or removed by a replica's resync.
+     */
+    static boolean isInternalEntry(String name) {
+        return name.equals(PackedStore.DIRECTORY_NAME) || name.equals(ReplicaFollower.STAGING_DIRECTORY_NAME)
+                || name.equals(IgnoreRules.SERVER_FILENAME);
+    }
+
     public void removeClient(int clientSocketID) {
-        clientSockets.remove(clientSocketID);
+        ClientSocketObject clientSocketObject = clientSockets.remove(clientSocketID);
+        if (clientSocketObject == null) {
+            return;
+        }
+
+        releaseSession(clientSocketObject.getSessionId());
+    }
+
+    /**
+     * Moves a transfer connection into the session of the client it belongs to.
+     */
+    public void attachClient(ClientSocketObject clientSocketObject, int sessionId) {
+        int previousSessionId = clientSocketObject.getSessionId();
+        clientSocketObject.setSessionId(sessionId);
+        releaseSession(previousSessionId);
+    }
+
+    /**
+     * Transfer connections share their session's allowance; it goes when the last of them leaves.
+     */
+    private void releaseSession(int sessionId) {
+        for (ClientSocketObject otherClientSocketObject : clientSockets.values()) {
+            if (otherClientSocketObject.getSessionId() == sessionId) {
+                return;
+            }
+        }
+
+        transferScheduler.removeClient(sessionId);
     }
 }
 
@@ -86,6 +372,8 @@ class ClientHandler implements Runnable {
     private final ClientSocketObject clientSocketObject;
     private final Server server;
     private final String serverDirectory;
+    private final IgnoreFile ignoreFile;
+    private final File rootDirectory;
     private final Socket clientSocket;
     private final ObjectOutputStream objectOutputStream;
     private final ObjectInputStream objectInputStream;
@@ -94,6 +382,8 @@ class ClientHandler implements Runnable {
         this.clientSocketObject = clientSocketObject;
         this.server = server;
         this.serverDirectory = serverDirectory;
+        this.ignoreFile = new IgnoreFile(new File(serverDirectory + IgnoreRules.SERVER_FILENAME));
+        this.rootDirectory = new File(serverDirectory);
         this.clientSocket = clientSocketObject.getSocket();
         this.objectOutputStream = new ObjectOutputStream(clientSocket.getOutputStream());
         this.objectInputStream = new ObjectInputStream(clientSocket.getInputStream());
@@ -109,37 +399,119 @@ class ClientHandler implements Runnable {
                     String command = (String) objectInputStream.readObject();
                     String filename = (String) objectInputStream.readObject();
 
-                    printClientEvent("Received command: " + command, false);
+                    printClientDebug("Received command: " + command);
+                    long startedAt = System.nanoTime();
                     switch (command) {
                         case "LIST":
                             listFiles();
-                            printClientEvent("Listed files", false);
+                            printClientDebug("Listed files");
                             break;
                         case "STACKED_CHANGES":
                             listStackedChanges();
-                            printClientEvent("Sent stacked changes", false);
+                            printClientDebug("Sent stacked changes");
                             break;
                         case "UPLOAD":
-                            receiveFile(filename);
+                            boolean isStored = false;
+                            if (server.isReplica() || isReservedPath(filename)) {
+                                printClientEvent("Rejected upload of '" + filename + "'", true);
+                                discardFile(filename);
+                            } else {
+                                isStored = receiveFile(filename);
+                            }
+
+                            // Sent once the file is stored and logged, so the client can order later changes after it.
+                            objectOutputStream.writeBoolean(isStored);
+                            objectOutputStream.flush();
+                            break;
+                        case "APPEND":
+                            appendFile(filename);
                             break;
                         case "DOWNLOAD":
                             sendFile(filename);
                             printClientEvent("Sent file: '" + filename + "'", false);
                             break;
+                        case "DOWNLOAD_SINCE":
+                            sendFileSince(filename);
+                            break;
                         case "CREATE_FOLDER":
+                            if (server.isReplica() || isReservedPath(filename)) {
+                                printClientEvent("Rejected " + command + " '" + filename + "'", true);
+                                objectOutputStream.writeBoolean(false);
+                                objectOutputStream.flush();
+                                break;
+                            }
+
                             createFolder(filename);
+                            objectOutputStream.writeBoolean(true);
+                            objectOutputStream.flush();
                             printClientEvent("Created folder: '" + filename + "'", false);
                             break;
                         case "DELETE":
+                            if (server.isReplica() || isReservedPath(filename)) {
+                                printClientEvent("Rejected " + command + " '" + filename + "'", true);
+                                objectOutputStream.writeBoolean(false);
+                                objectOutputStream.flush();
+                                break;
+                            }
+
                             deleteFile(filename);
+                            objectOutputStream.writeBoolean(true);
+                            objectOutputStream.flush();
                             printClientEvent("Deleted: '" + filename + "'", false);
                             break;
                         case "EXISTS":
                             checkExistence(filename);
-                            printClientEvent("Checked existence: '" + filename + "'", false);
+                            printClientDebug("Checked existence: '" + filename + "'");
+                            break;
+                        case "SESSION":
+                            objectOutputStream.writeInt(clientSocketObject.getId());
+                            objectOutputStream.flush();
+                            break;
+                        case "ATTACH":
+                            server.attachClient(clientSocketObject, Integer.parseInt(filename));
+                            printClientEvent("Attached to client #" + filename, false);
+                            break;
+                        case "REPLICATE":
+                            clientSocketObject.setReplica(true);
+                            listReplicationLog(Long.parseLong(filename));
+                            break;
+                        case "REGISTER_REPLICA":
+                            clientSocketObject.setReplica(true);
+                            clientSocketObject.setReplicaAddress(filename);
+                            printClientEvent("Registered replica at " + filename, false);
+                            break;
+                        case "REPLICAS":
+                            listReplicas();
+                            printClientDebug("Listed replicas");
+                            break;
+                        case "SEQUENCE":
+                            objectOutputStream.writeLong(server.getReplicationSequence());
+                            objectOutputStream.flush();
+                            break;
+                        case "REPLICATION_LAG":
+                            objectOutputStream.writeLong(server.getReplicationLagMillis());
+                            objectOutputStream.flush();
+                            break;
+                        case "LIMIT":
+                            // "<admin token> <limit>"; the token is never logged.
+                            String[] limitArguments = filename.trim().split("\\s+", 2);
+                            boolean isAuthorized = limitArguments.length == 2 && server.isAdminToken(limitArguments[0]);
+                            boolean isApplied = isAuthorized && applyLimit(limitArguments[1]);
+                            objectOutputStream.writeBoolean(isApplied);
+                            objectOutputStream.flush();
+                            printClientEvent(isAuthorized
+                                    ? (isApplied ? "Applied" : "Rejected") + " limit: " + limitArguments[1]
+                                    : "Rejected limit without a valid admin token", !isApplied);
+                            break;
+                        case "STATS":
+                            listStats();
+                            printClientDebug("Sent stats");
                             break;
                     }
-                } catch (SocketException e) {
+
+                    server.getMetrics().recordCommand(command, System.nanoTime() - startedAt);
+                } catch (SocketException | EOFException e) {
+                    // A client that closes its socket shows up as an EOF on the next read.
                     server.removeClient(clientSocketObject.getId());
                     printClientEvent("Disconnected", false);
                     break;
@@ -155,6 +527,12 @@ class ClientHandler implements Runnable {
 
     private void listFiles() {
         ArrayList<File> serverFiles = getFiles(new File(serverDirectory));
+        PackedStore packedStore = server.getPackedStore();
+        if (packedStore != null) {
+            listFiles(serverFiles, packedStore);
+            return;
+        }
+
         for (File serverFile : serverFiles) {
             try {
                 String localPath = serverFile.getAbsolutePath();
@@ -177,8 +555,36 @@ class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Lists the plain files and folders together with the packed files, whose names come from the
+     * store's index without touching the file system. Sorted, so folders still precede their contents.
+     */
+    private void listFiles(ArrayList<File> serverFiles, PackedStore packedStore) {
+        TreeMap<String, String> entries = new TreeMap<>();
+        for (File serverFile : serverFiles) {
+            entries.put(serverFile.getAbsolutePath().replace(serverDirectory, ""), serverFile.isDirectory() ? "DIR" : "FILE");
+        }
+
+        IgnoreRules ignoreRules = ignoreFile.get();
+        for (String name : packedStore.getNames()) {
+            if (!ignoreRules.isIgnored(name, false)) {
+                entries.put(name, "FILE");
+            }
+        }
+
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                objectOutputStream.writeObject(entry.getValue() + " " + entry.getKey());
+            }
+
+            objectOutputStream.writeObject("LIST_END");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void listStackedChanges() {
-        ArrayList<String> stackedChanges = clientSocketObject.getStackedChanges();
+        ArrayList<String> stackedChanges = clientSocketObject.drainStackedChanges();
         for (String stackedChange : stackedChanges) {
             try {
                 objectOutputStream.writeObject(stackedChange);
@@ -192,32 +598,104 @@ class ClientHandler implements Runnable {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    private void listReplicationLog(long afterSequence) throws IOException {
+        ReplicationLog replicationLog = server.getReplicationLog();
+        List<String> entries = afterSequence < 0
+                ? new ArrayList<>()
+                : replicationLog.getEntriesAfter(afterSequence);
+
+        objectOutputStream.writeLong(replicationLog.getHeadSequence());
+        objectOutputStream.writeLong(replicationLog.getOldestSequence());
+        objectOutputStream.writeLong(replicationLog.getHeadTimestamp());
+        for (String entry : entries) {
+            objectOutputStream.writeObject(entry);
+        }
+
+        objectOutputStream.writeObject("REPLICATE_END");
+        objectOutputStream.flush();
+    }
+
+    private void listStats() throws IOException {
+        for (Map.Entry<String, Object> entry : server.getMetrics().snapshot().entrySet()) {
+            objectOutputStream.writeObject(entry.getKey() + " " + entry.getValue());
+        }
+
+        objectOutputStream.writeObject("STATS_END");
+        objectOutputStream.flush();
+    }
+
+    private void listReplicas() throws IOException {
+        for (String replicaAddress : server.getReplicaAddresses()) {
+            objectOutputStream.writeObject(replicaAddress);
+        }
+
+        objectOutputStream.writeObject("REPLICAS_END");
+        objectOutputStream.flush();
+    }
 
-        clientSocketObject.emptyStackedChanges();
+    private void discardFile(String filename) throws IOException {
+        long size = objectInputStream.readLong();
+        byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
+        int bytesRead;
+        while (size > 0 && (bytesRead = objectInputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
+            size -= bytesRead;
+        }
     }
 
-    private void receiveFile(String filename) throws IOException {
-        printClientEvent("Receiving file '" + filename + "'...", false);
+    /**
+     * Stores an upload and returns whether it was stored. An upload that breaks off leaves nothing behind.
+     */
+    private boolean receiveFile(String filename) throws IOException {
+        printClientDebug("Receiving file '" + filename + "'...");
+        ServerMetrics metrics = server.getMetrics();
         FileOutputStream fileOutputStream = null;
+        metrics.transferStarted();
 
         try {
             String filePath = serverDirectory + filename;
-            fileOutputStream = new FileOutputStream(filePath);
 
-            byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
-            int bytesRead;
+            // Uploads arrive on several connections per client, so the folder may not have been created yet.
+            new File(filePath).getParentFile().mkdirs();
 
             long size = objectInputStream.readLong();
-            while (size > 0 && (bytesRead = objectInputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
-                size -= bytesRead;
-            }
+            PackedStore packedStore = server.getPackedStore();
+            if (packedStore != null && packedStore.accepts(size) && isPackable(filename)) {
+                receivePackedFile(filename, size, packedStore);
+            } else {
+                // A packed file that grew past the threshold becomes a plain file. The packed copy wins over a
+                // plain one, so its tombstone reaches the disk before the plain file is written.
+                if (packedStore != null && packedStore.remove(filename)) {
+                    packedStore.sync();
+                }
 
-            fileOutputStream.close();
+                fileOutputStream = new FileOutputStream(filePath);
 
-            printClientEvent("Received file '" + filename + "'", false);
-            appendToStackedChange("DOWNLOAD", filename);
+                byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
+                int bytesRead;
+
+                boolean isPriority = TransferScheduler.isPriority(size);
+                while (size > 0) {
+                    int chunkSize = (int) Math.min(buffer.length, size);
+                    if ((bytesRead = objectInputStream.read(buffer, 0, chunkSize)) == -1) {
+                        throw new EOFException("Upload of '" + filename + "' ended early");
+                    }
+
+                    // Charged for what arrived: a read returns at most one block of the object stream.
+                    awaitBandwidth(isPriority, bytesRead);
+
+                    fileOutputStream.write(buffer, 0, bytesRead);
+                    metrics.addBytesReceived(bytesRead);
+                    size -= bytesRead;
+                }
+
+                fileOutputStream.close();
+            }
 
+            printClientEvent("Received file '" + filename + "'", false);
+            appendToStackedChange("DOWNLOAD", server.getReplicationLog().append("DOWNLOAD", filename), filename);
+            return true;
         } catch (IOException e) {
             if (fileOutputStream != null) {
                 try {
@@ -235,83 +713,385 @@ class ClientHandler implements Runnable {
                     }
                 }
             }
+
+            return false;
+        } finally {
+            metrics.transferFinished();
+        }
+    }
+
+    /**
+     * Receives a small upload into memory and appends it to the packed store, then removes any plain
+     * copy. Nothing is stored when the upload breaks off.
+     */
+    private void receivePackedFile(String filename, long size, PackedStore packedStore) throws IOException {
+        byte[] data = new byte[(int) size];
+        int chunkSize = clientSocket.getReceiveBufferSize();
+        boolean isPriority = TransferScheduler.isPriority(size);
+
+        int received = 0;
+        while (received < data.length) {
+            int length = Math.min(chunkSize, data.length - received);
+            int bytesRead = objectInputStream.read(data, received, length);
+            if (bytesRead == -1) {
+                throw new EOFException("Upload of '" + filename + "' ended early");
+            }
+
+            awaitBandwidth(isPriority, bytesRead);
+
+            server.getMetrics().addBytesReceived(bytesRead);
+            received += bytesRead;
+        }
+
+        packedStore.put(filename, data, data.length);
+
+        // The packed copy reaches the disk before the plain one it replaces is deleted.
+        File file = new File(serverDirectory + filename);
+        if (file.exists()) {
+            packedStore.sync();
+            file.delete();
+        }
+    }
+
+    /**
+     * Rules files stay plain files, so they can still be read and edited on disk.
+     */
+    private static boolean isPackable(String filename) {
+        String name = new File(filename).getName();
+        return !name.equals(IgnoreRules.FILENAME) && !name.equals(IgnoreRules.SERVER_FILENAME);
+    }
+
+    /**
+     * Appends bytes to the end of a file. Only accepted when the file's current length matches the
+     * client's offset; otherwise the bytes are discarded and the client falls back to a full upload.
+     */
+    private void appendFile(String filename) throws IOException {
+        long offset = objectInputStream.readLong();
+        File file = new File(serverDirectory + filename);
+        PackedStore packedStore = server.getPackedStore();
+        long packedLength = packedStore != null ? packedStore.getLength(filename) : -1;
+        long currentLength = packedLength >= 0 ? packedLength : (file.isFile() ? file.length() : -1);
+
+        if (server.isReplica() || isReservedPath(filename)) {
+            printClientEvent("Rejected append to '" + filename + "'", true);
+        } else if (currentLength != offset) {
+            // Routine: the client falls back to a full upload.
+            printClientDebug("Append to '" + filename + "' expected offset " + currentLength + ", got " + offset);
+        }
+
+        boolean isAccepted = !server.isReplica() && !isReservedPath(filename) && currentLength == offset;
+        if (!isAccepted) {
+            discardFile(filename);
+            objectOutputStream.writeBoolean(false);
+            objectOutputStream.flush();
+            return;
+        }
+
+        // Files that are appended to are growing logs; keep them as plain files from now on.
+        if (packedLength >= 0) {
+            packedStore.unpack(filename, file);
+        }
+
+        ServerMetrics metrics = server.getMetrics();
+        FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+        metrics.transferStarted();
+
+        byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
+        int bytesRead;
+
+        long size = objectInputStream.readLong();
+        long appendedSize = size;
+        boolean isPriority = TransferScheduler.isPriority(size);
+        try {
+            while (size > 0) {
+                int chunkSize = (int) Math.min(buffer.length, size);
+                if ((bytesRead = objectInputStream.read(buffer, 0, chunkSize)) == -1) {
+                    break;
+                }
+
+                awaitBandwidth(isPriority, bytesRead);
+
+                fileOutputStream.write(buffer, 0, bytesRead);
+                metrics.addBytesReceived(bytesRead);
+                size -= bytesRead;
+            }
+        } finally {
+            try {
+                // An append that breaks off is undone, so the next offset check runs against the original bytes.
+                if (size > 0) {
+                    fileOutputStream.getChannel().truncate(offset);
+                }
+            } finally {
+                fileOutputStream.close();
+                metrics.transferFinished();
+            }
         }
+
+        if (size > 0) {
+            printClientEvent("Append to '" + filename + "' ended early", true);
+            objectOutputStream.writeBoolean(false);
+            objectOutputStream.flush();
+            return;
+        }
+
+        printClientEvent("Appended " + appendedSize + " bytes to '" + filename + "'", false);
+        appendToStackedChange("DOWNLOAD", server.getReplicationLog().append("DOWNLOAD", filename), filename);
+
+        // Like an upload's reply, sent only once the change is logged.
+        objectOutputStream.writeBoolean(true);
+        objectOutputStream.flush();
     }
 
-    private void appendToStackedChange(String command, String filename) {
-        Map<Integer, ClientSocketObject> otherClients = server.getOtherClients(clientSocketObject.getId());
-        System.out.println(" - Total clients connected (" + server.getClients().size() + ")...");
-        System.out.println(" - Adding to stacked changes (" + otherClients.size() + ")...");
+    /**
+     * Queues a change for the other clients as "&lt;command&gt; &lt;sequence&gt; &lt;filename&gt;", where the
+     * sequence is the change's position in the replication log. Clients pass it on when they read the
+     * file from a replica, so a replica that has not applied the change yet cannot serve an older copy.
+     */
+    private void appendToStackedChange(String command, long sequence, String filename) {
+        // Excluded paths are not fanned out. A deleted path's type is unknown, so it counts as excluded if
+        // either a file or a folder of that name would be.
+        IgnoreRules ignoreRules = ignoreFile.get();
+        boolean isIgnored = command.equals("DELETE")
+                ? ignoreRules.isIgnored(filename, false) || ignoreRules.isIgnored(filename, true)
+                : ignoreRules.isIgnored(filename, command.equals("CREATE_FOLDER"));
+        if (isIgnored) {
+            printClientDebug("Not fanning out excluded " + command + " '" + filename + "'");
+            return;
+        }
+
+        Map<Integer, ClientSocketObject> otherClients = server.getOtherClients(clientSocketObject.getSessionId());
+        String stackedChange = command + " " + sequence + " " + filename;
+        boolean isDebugEnabled = ServerLog.isEnabled(LogLevel.DEBUG);
+        if (isDebugEnabled) {
+            ServerLog.debug(" - Total clients connected (" + server.getClients().size() + ")...");
+            ServerLog.debug(" - Adding to stacked changes (" + otherClients.size() + ")...");
+        }
 
         for (Map.Entry<Integer, ClientSocketObject> entry : otherClients.entrySet()) {
             ClientSocketObject otherClientSocket = entry.getValue();
+            if (otherClientSocket.isReplica() || otherClientSocket.isAttached()) {
+                continue;
+            }
 
-            String stackedChange = command + " " + filename;
             otherClientSocket.appendStackedChange(stackedChange);
-            System.out.println("Client #" + otherClientSocket.getId() + " - appended stacked change (" + stackedChange + ")");
+            if (isDebugEnabled) {
+                ServerLog.debug("Client #" + otherClientSocket.getId() + " - appended stacked change (" + stackedChange + ")");
+            }
         }
     }
 
     private void sendFile(String filename) throws IOException {
         clientSocketObject.setBusy(true);
 
+        PackedStore packedStore = server.getPackedStore();
+        byte[] packedData = packedStore != null ? packedStore.read(filename) : null;
+        if (packedData != null) {
+            sendPackedFile(packedData);
+            clientSocketObject.setBusy(false);
+            return;
+        }
+
         String filePath = serverDirectory + filename;
+        File file = new File(filePath);
+        if (!file.isFile()) {
+            objectOutputStream.writeLong(-1);
+            objectOutputStream.flush();
+            clientSocketObject.setBusy(false);
+            return;
+        }
+
+        ServerMetrics metrics = server.getMetrics();
         FileInputStream fileInputStream = new FileInputStream(filePath);
+        metrics.transferStarted();
 
         byte[] buffer = new byte[clientSocket.getReceiveBufferSize()];
         int bytesRead;
 
-        File file = new File(filePath);
-        objectOutputStream.writeLong(file.length());
+        try {
+            long size = file.length();
+            boolean isPriority = TransferScheduler.isPriority(size);
+            objectOutputStream.writeLong(size);
+
+            while (true) {
+                if (size > 0) {
+                    awaitBandwidth(isPriority, Math.min(buffer.length, size));
+                }
+
+                if ((bytesRead = fileInputStream.read(buffer)) == -1) {
+                    break;
+                }
 
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-            objectOutputStream.write(buffer, 0, bytesRead);
+                objectOutputStream.write(buffer, 0, bytesRead);
+                metrics.addBytesSent(bytesRead);
+                size -= bytesRead;
+            }
+        } finally {
+            fileInputStream.close();
+            metrics.transferFinished();
         }
 
-        fileInputStream.close();
         objectOutputStream.flush();
 
         clientSocketObject.setBusy(false);
     }
 
+    /**
+     * Handles DOWNLOAD_SINCE "&lt;sequence&gt; &lt;filename&gt;": a download that must reflect at least the
+     * given replication log entry. A replica that has not applied it yet answers -1, like for a missing
+     * file, and the client reads from the primary instead.
+     */
+    private void sendFileSince(String argument) throws IOException {
+        String[] arguments = argument.split(" ", 2);
+        long sequence = Long.parseLong(arguments[0]);
+        String filename = arguments[1];
+
+        if (server.getReplicationSequence() < sequence) {
+            objectOutputStream.writeLong(-1);
+            objectOutputStream.flush();
+            printClientDebug("Not caught up with change " + sequence + " of '" + filename + "' yet");
+            return;
+        }
+
+        sendFile(filename);
+        printClientEvent("Sent file: '" + filename + "'", false);
+    }
+
+    private void sendPackedFile(byte[] data) throws IOException {
+        ServerMetrics metrics = server.getMetrics();
+        metrics.transferStarted();
+
+        int chunkSize = clientSocket.getReceiveBufferSize();
+        boolean isPriority = TransferScheduler.isPriority(data.length);
+        try {
+            objectOutputStream.writeLong(data.length);
+            for (int sent = 0; sent < data.length; sent += chunkSize) {
+                int length = Math.min(chunkSize, data.length - sent);
+                awaitBandwidth(isPriority, length);
+                objectOutputStream.write(data, sent, length);
+                metrics.addBytesSent(length);
+            }
+        } finally {
+            metrics.transferFinished();
+        }
+
+        objectOutputStream.flush();
+    }
+
+    /**
+     * Whether a path lies in one of the server's own folders, which clients may not write to.
+     */
+    private boolean isReservedPath(String filename) {
+        String path = filename.replaceFirst("^[/\\\\]+", "");
+        return Server.isInternalEntry(path.split("[/\\\\]", 2)[0]);
+    }
+
+    /**
+     * Waits for the scheduler to grant this client the next chunk of a transfer.
+     */
+    private void awaitBandwidth(boolean isPriority, long chunkSize) throws InterruptedIOException {
+        server.getTransferScheduler().acquire(clientSocketObject.getSessionId(), isPriority, chunkSize);
+    }
+
+    /**
+     * Applies the limit of an authorized LIMIT command: "global &lt;bytes/s&gt;", "client-default &lt;bytes/s&gt;",
+     * "client &lt;id&gt; &lt;bytes/s&gt;" or "weight &lt;id&gt; &lt;weight&gt;". A limit of 0 means unlimited.
+     */
+    private boolean applyLimit(String limit) {
+        TransferScheduler transferScheduler = server.getTransferScheduler();
+        String[] arguments = limit.trim().split("\\s+");
+
+        try {
+            if (arguments.length == 2 && arguments[0].equals("global")) {
+                transferScheduler.setGlobalLimit(Long.parseLong(arguments[1]));
+            } else if (arguments.length == 2 && arguments[0].equals("client-default")) {
+                transferScheduler.setDefaultClientLimit(Long.parseLong(arguments[1]));
+            } else if (arguments.length == 3 && arguments[0].equals("client")) {
+                transferScheduler.setClientLimit(Integer.parseInt(arguments[1]), Long.parseLong(arguments[2]));
+            } else if (arguments.length == 3 && arguments[0].equals("weight")) {
+                transferScheduler.setClientWeight(Integer.parseInt(arguments[1]), Integer.parseInt(arguments[2]));
+            } else {
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        return true;
+    }
+
     private void createFolder(String folder) {
         String filePath = serverDirectory + folder;
         File file = new File(filePath);
 
         if (!file.exists() && !file.mkdirs()) {
-            System.out.println("Failed to create folder " + folder);
+            ServerLog.error("Failed to create folder " + folder);
         }
 
-        appendToStackedChange("CREATE_FOLDER", folder);
+        appendToStackedChange("CREATE_FOLDER", server.getReplicationLog().append("CREATE_FOLDER", folder), folder);
     }
 
     private void deleteFile(String filename) {
         String filePath = serverDirectory + filename;
         File file = new File(filePath);
-        if (!file.delete()) {
-            System.out.println("Failed to delete file " + filename);
+
+        boolean isPackedDeleted = false;
+        PackedStore packedStore = server.getPackedStore();
+        if (packedStore != null) {
+            try {
+                isPackedDeleted = packedStore.remove(filename) | packedStore.removeFolder(filename) > 0;
+            } catch (IOException e) {
+                ServerLog.error("Failed to delete packed file " + filename + ": " + e.getMessage());
+            }
+        }
+
+        if (!file.delete() && !isPackedDeleted) {
+            ServerLog.error("Failed to delete file " + filename);
         }
 
-        appendToStackedChange("DELETE", filename);
+        appendToStackedChange("DELETE", server.getReplicationLog().append("DELETE", filename), filename);
     }
 
     private void checkExistence(String filename) throws IOException {
         String filePath = serverDirectory + filename;
         File file = new File(filePath);
 
-        objectOutputStream.writeBoolean(file.exists());
+        PackedStore packedStore = server.getPackedStore();
+        boolean isPacked = packedStore != null && packedStore.contains(filename);
+
+        objectOutputStream.writeBoolean(isPacked || file.exists());
         objectOutputStream.flush();
     }
 
     public ArrayList<File> getFiles(File directory) {
+        IgnoreRules ignoreRules = ignoreFile.get();
+        return getFiles(directory, ignoreRules, ignoreRules.getRoot());
+    }
+
+    /**
+     * Lists a folder recursively, leaving out the server's own folders and entries excluded by the server
+     * directory's ignore rules. Excluded folders are not listed at all.
+     */
+    private ArrayList<File> getFiles(File directory, IgnoreRules ignoreRules, IgnoreRules.Cursor cursor) {
         ArrayList<File> clientFiles = new ArrayList<>();
         File[] files = directory.listFiles();
 
         if (files != null) {
             for (File file : files) {
+                if (directory.equals(rootDirectory) && Server.isInternalEntry(file.getName())) {
+                    continue;
+                }
+
+                IgnoreRules.Cursor fileCursor = cursor;
+                if (!cursor.isUnconstrained()) {
+                    fileCursor = ignoreRules.enter(cursor, file.getName());
+                    if (ignoreRules.isIgnored(fileCursor, file::isDirectory)) {
+                        continue;
+                    }
+                }
+
                 clientFiles.add(file);
                 if (file.isDirectory()) {
-                    clientFiles.addAll(getFiles(file));
+                    clientFiles.addAll(getFiles(file, ignoreRules, fileCursor));
                 }
             }
         }
@@ -322,12 +1102,18 @@ class ClientHandler implements Runnable {
 
     private void printClientEvent(String event, boolean isError) {
         if (isError) {
-            System.err.println("Client #" + clientSocketObject.getId() + " - " + event);
+            ServerLog.error("Client #" + clientSocketObject.getId() + " - " + event);
         } else {
-            System.out.println("Client #" + clientSocketObject.getId() + " - " + event);
+            ServerLog.info("Client #" + clientSocketObject.getId() + " - " + event);
         }
     }
-}
+
+    private void printClientDebug(String event) {
+        if (ServerLog.isEnabled(LogLevel.DEBUG)) {
+            ServerLog.debug("Client #" + clientSocketObject.getId() + " - " + event);
+        }
+    }
+}
 
 class ClientSocketObject {
     private final int id;
@@ -335,12 +1121,16 @@ class ClientSocketObject {
     private ObjectOutputStream objectOutputStream;
     private ObjectInputStream objectInputStream;
     private ArrayList<String> stackedChanges;
+    private int sessionId;
     private boolean isBusy = false;
+    private boolean isReplica = false;
+    private String replicaAddress;
 
     public ClientSocketObject(int id, Socket socket) throws IOException {
         this.id = id;
         this.socket = socket;
         this.stackedChanges = new ArrayList<>();
+        this.sessionId = id;
     }
 
     public int getId() {
@@ -367,22 +1157,48 @@ class ClientSocketObject {
         this.objectInputStream = objectInputStream;
     }
 
-    public ArrayList<String> getStackedChanges() {
+    public synchronized ArrayList<String> getStackedChanges() {
         return stackedChanges;
     }
 
-    public void setStackedChanges(ArrayList<String> stackedChanges) {
+    public synchronized void setStackedChanges(ArrayList<String> stackedChanges) {
         this.stackedChanges = stackedChanges;
     }
 
-    public void appendStackedChange(String stackedChange) {
+    public synchronized void appendStackedChange(String stackedChange) {
         this.stackedChanges.add(stackedChange);
     }
 
-    public void emptyStackedChanges() {
+    public synchronized void emptyStackedChanges() {
         this.stackedChanges.clear();
     }
 
+    /**
+     * Returns the stacked changes and empties them in one step, so changes appended by other
+     * client threads while the list is being sent are not lost.
+     */
+    public synchronized ArrayList<String> drainStackedChanges() {
+        ArrayList<String> drainedStackedChanges = stackedChanges;
+        stackedChanges = new ArrayList<>();
+        return drainedStackedChanges;
+    }
+
+    /**
+     * The id of the client this connection belongs to. Transfer connections opened by a client's
+     * pipeline attach to the client's main connection so they share its stacked changes.
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public boolean isAttached() {
+        return sessionId != id;
+    }
+
     public boolean isBusy() {
         return isBusy;
     }
@@ -390,4 +1206,1673 @@ class ClientSocketObject {
     public void setBusy(boolean busy) {
         isBusy = busy;
     }
-}
\ No newline at end of file
+
+    public synchronized int getStackedChangeCount() {
+        return stackedChanges.size();
+    }
+
+    public boolean isReplica() {
+        return isReplica;
+    }
+
+    public void setReplica(boolean replica) {
+        isReplica = replica;
+    }
+
+    public String getReplicaAddress() {
+        return replicaAddress;
+    }
+
+    public void setReplicaAddress(String replicaAddress) {
+        this.replicaAddress = replicaAddress;
+    }
+}
+
+class ReplicationLog {
+    private static final int MAX_ENTRIES = 10000;
+    private final ArrayDeque<String> entries;
+    private long headSequence = 0;
+    private long headTimestamp = 0;
+
+    public ReplicationLog() {
+        this.entries = new ArrayDeque<>();
+    }
+
+    /**
+     * Records a mutation as "&lt;sequence&gt; &lt;timestamp&gt; &lt;command&gt; &lt;filename&gt;". Only the last
+     * {@value #MAX_ENTRIES} mutations are kept; replicas that fall further behind do a full resync.
+     */
+    public synchronized long append(String command, String filename) {
+        headSequence++;
+        headTimestamp = System.currentTimeMillis();
+        entries.addLast(headSequence + " " + headTimestamp + " " + command + " " + filename);
+
+        if (entries.size() > MAX_ENTRIES) {
+            entries.removeFirst();
+        }
+
+        return headSequence;
+    }
+
+    public synchronized long getHeadSequence() {
+        return headSequence;
+    }
+
+    /**
+     * When the newest mutation was recorded, or 0 if there is none.
+     */
+    public synchronized long getHeadTimestamp() {
+        return headTimestamp;
+    }
+
+    public synchronized long getOldestSequence() {
+        return headSequence - entries.size() + 1;
+    }
+
+    public synchronized List<String> getEntriesAfter(long sequence) {
+        List<String> entriesAfter = new ArrayList<>();
+        long entrySequence = getOldestSequence();
+
+        for (String entry : entries) {
+            if (entrySequence > sequence) {
+                entriesAfter.add(entry);
+            }
+
+            entrySequence++;
+        }
+
+        return entriesAfter;
+    }
+}
+
+class ReplicaFollower implements Runnable {
+    /**
+     * Downloads are written here and then moved into place, so the served tree never shows partial files.
+     */
+    public static final String STAGING_DIRECTORY_NAME = ".replica-staging";
+    private static final int POLL_INTERVAL_MILLIS = 1000;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final String advertisedAddress;
+    private final String directory;
+    private Socket socket;
+    private ObjectOutputStream objectOutputStream;
+    private ObjectInputStream objectInputStream;
+    private volatile boolean running = true;
+    private volatile long appliedSequence = -1;
+    // Timestamp of the oldest mutation this replica may be missing, 0 while it is current.
+    private volatile long pendingSinceMillis;
+
+    public ReplicaFollower(String primaryHost, int primaryPort, String advertisedAddress, String directory) {
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.advertisedAddress = advertisedAddress;
+        this.directory = directory;
+        this.pendingSinceMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                connect();
+
+                while (running) {
+                    // After applying entries, ask again right away: more may have arrived in the meantime.
+                    if (!poll()) {
+                        Thread.sleep(POLL_INTERVAL_MILLIS);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (running) {
+                    ServerLog.error("Lost connection with primary " + primaryHost + ":" + primaryPort + ", retrying...");
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            closeSocket();
+
+            // The primary may have restarted with a fresh log, so start over with a full resync. Until
+            // then, anything that changed since contact was lost may be missing.
+            appliedSequence = -1;
+            markPendingSince(System.currentTimeMillis());
+
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        closeSocket();
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public long getLagMillis() {
+        long pendingSince = pendingSinceMillis;
+        return pendingSince == 0 ? 0 : Math.max(0, System.currentTimeMillis() - pendingSince);
+    }
+
+    private void markPendingSince(long timestamp) {
+        long pendingSince = pendingSinceMillis;
+        if (timestamp > 0 && (pendingSince == 0 || timestamp < pendingSince)) {
+            pendingSinceMillis = timestamp;
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket(primaryHost, primaryPort);
+        socket.setTcpNoDelay(true);
+        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+        objectInputStream = new ObjectInputStream(socket.getInputStream());
+
+        objectOutputStream.writeObject("REGISTER_REPLICA");
+        objectOutputStream.writeObject(advertisedAddress);
+        objectOutputStream.flush();
+
+        ServerLog.info("Following primary " + primaryHost + ":" + primaryPort + " as " + advertisedAddress);
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Fetches and applies the primary's new log entries. Returns whether anything was applied.
+     */
+    private boolean poll() throws IOException, ClassNotFoundException {
+        objectOutputStream.writeObject("REPLICATE");
+        objectOutputStream.writeObject(String.valueOf(appliedSequence));
+        objectOutputStream.flush();
+
+        long headSequence = objectInputStream.readLong();
+        long oldestSequence = objectInputStream.readLong();
+        long headTimestamp = objectInputStream.readLong();
+
+        ArrayList<String> entries = new ArrayList<>();
+        while (true) {
+            String entry = (String) objectInputStream.readObject();
+            if (entry.equals("REPLICATE_END")) {
+                break;
+            }
+
+            entries.add(entry);
+        }
+
+        if (appliedSequence < 0 || appliedSequence + 1 < oldestSequence) {
+            // The entries this replica missed are gone from the log; the newest one is at least as old.
+            markPendingSince(headTimestamp);
+            resync();
+            appliedSequence = headSequence;
+            pendingSinceMillis = 0;
+            return true;
+        }
+
+        for (String entry : entries) {
+            String[] entryArguments = entry.split(" ", 4);
+            long sequence = Long.parseLong(entryArguments[0]);
+            String command = entryArguments[2];
+            String filename = entryArguments[3];
+
+            markPendingSince(Long.parseLong(entryArguments[1]));
+
+            File file = new File(directory + filename);
+            switch (command) {
+                case "DOWNLOAD":
+                    downloadFile(filename);
+                    break;
+                case "CREATE_FOLDER":
+                    file.mkdirs();
+                    break;
+                case "DELETE":
+                    file.delete();
+                    break;
+            }
+
+            appliedSequence = sequence;
+            pendingSinceMillis = 0;
+        }
+
+        return !entries.isEmpty();
+    }
+
+    private void resync() throws IOException, ClassNotFoundException {
+        ServerLog.info("Resyncing replica from primary...");
+
+        objectOutputStream.writeObject("LIST");
+        objectOutputStream.writeObject("");
+        objectOutputStream.flush();
+
+        ArrayList<String> primaryFilenamesData = new ArrayList<>();
+        while (true) {
+            String filenameData = (String) objectInputStream.readObject();
+            if (filenameData.equals("LIST_END")) {
+                break;
+            }
+
+            primaryFilenamesData.add(filenameData);
+        }
+
+        Set<String> primaryFilenames = new HashSet<>();
+        for (String filenameData : primaryFilenamesData) {
+            String[] filenameArguments = filenameData.split(" ", 2);
+            String typePrefix = filenameArguments[0];
+            String filename = filenameArguments[1];
+
+            primaryFilenames.add(filename);
+            switch (typePrefix) {
+                case "FILE":
+                    downloadFile(filename);
+                    break;
+                case "DIR":
+                    new File(directory + filename).mkdirs();
+                    break;
+            }
+        }
+
+        ArrayList<File> localFiles = getLocalFiles(new File(directory));
+        localFiles.sort(Collections.reverseOrder());
+        for (File localFile : localFiles) {
+            String filename = localFile.getAbsolutePath().replace(directory, "");
+            if (!primaryFilenames.contains(filename)) {
+                localFile.delete();
+            }
+        }
+
+        ServerLog.info("Replica resynced (" + primaryFilenames.size() + " entries)");
+    }
+
+    private void downloadFile(String filename) throws IOException {
+        objectOutputStream.writeObject("DOWNLOAD");
+        objectOutputStream.writeObject(filename);
+        objectOutputStream.flush();
+
+        long size = objectInputStream.readLong();
+        if (size < 0) {
+            // Deleted on the primary in the meantime; the DELETE entry follows in the log.
+            return;
+        }
+
+        // Stage the download on the same file system and move it into place, so readers never see a partial file.
+        File file = new File(directory + filename);
+        File stagingDirectory = new File(directory + STAGING_DIRECTORY_NAME);
+        stagingDirectory.mkdirs();
+        File temporaryFile = File.createTempFile("download-", ".part", stagingDirectory);
+
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+
+            byte[] buffer = new byte[socket.getReceiveBufferSize()];
+            int bytesRead;
+            while (size > 0 && (bytesRead = objectInputStream.read(buffer, 0, (int) Math.min(buffer.length, size))) != -1) {
+                fileOutputStream.write(buffer, 0, bytesRead);
+                size -= bytesRead;
+            }
+
+            fileOutputStream.close();
+            file.getParentFile().mkdirs();
+            java.nio.file.Files.move(temporaryFile.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporaryFile.delete();
+        }
+    }
+
+    private ArrayList<File> getLocalFiles(File directory) {
+        ArrayList<File> localFiles = new ArrayList<>();
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                // The staging folder, or a packed store left from when this server was a primary.
+                if (directory.equals(new File(this.directory)) && Server.isInternalEntry(file.getName())) {
+                    continue;
+                }
+
+                localFiles.add(file);
+                if (file.isDirectory()) {
+                    localFiles.addAll(getLocalFiles(file));
+                }
+            }
+        }
+
+        return localFiles;
+    }
+}
+
+/**
+ * Optional storage for small files: instead of one inode each, they are appended as records to large
+ * segment files under {@value #DIRECTORY_NAME}/, and an in-memory index maps each name to its record.
+ * Files above the threshold and all folders stay plain files and directories. Downloads read the data
+ * with one positional read, and LIST takes the names from the index, so neither makes a syscall per
+ * packed file.
+ * <p>
+ * Records are self-describing (name, data, checksum) and a delete appends a tombstone, so the index is
+ * rebuilt on startup by replaying the segments in order; a torn record at the end of the last segment
+ * is cut off. Overwrites and deletes leave dead records behind. A background thread rewrites the live
+ * records of sealed segments that are at least half dead into the active segment and then removes the
+ * old segment; reads hold a shared lock so a segment is never removed under them.
+ * <p>
+ * When a name exists both packed and as a plain file (after a crash between writing one and removing
+ * the other), the packed copy wins. Small uploads sync their record before deleting the plain file,
+ * and large uploads sync a tombstone for the packed copy before writing the plain file. Unpacking
+ * writes a plain file with the same data before the tombstone, so either copy is current.
+ */
+class PackedStore implements Closeable {
+    public static final String DIRECTORY_NAME = ".packed";
+    public static final long MAX_THRESHOLD = 16 * 1024 * 1024;
+    public static final long SEGMENT_BYTES = 256L * 1024 * 1024;
+    private static final long COMPACTION_INTERVAL_MILLIS = 30_000;
+    private static final double COMPACTION_DEAD_RATIO = 0.5;
+    private static final int MAGIC = 0x46534d50;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // magic, type, timestamp, name length, data length, checksum
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 4 + 4 + 4;
+    private final File directory;
+    private final long threshold;
+    private final long segmentBytes;
+    private final ConcurrentSkipListMap<String, Entry> index;
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+    private final ReentrantReadWriteLock segmentLock;
+    private final Object appendLock;
+    private final Object compactionLock;
+    private final AtomicLong compactions;
+    private volatile Segment activeSegment;
+    private Thread compactorThread;
+
+    private PackedStore(File directory, long threshold, long segmentBytes) {
+        this.directory = directory;
+        this.threshold = Math.min(threshold, MAX_THRESHOLD);
+        this.segmentBytes = segmentBytes;
+        this.index = new ConcurrentSkipListMap<>();
+        this.segments = new ConcurrentSkipListMap<>();
+        this.segmentLock = new ReentrantReadWriteLock();
+        this.appendLock = new Object();
+        this.compactionLock = new Object();
+        this.compactions = new AtomicLong();
+    }
+
+    public static boolean exists(String serverDirectory) {
+        return new File(serverDirectory + DIRECTORY_NAME).isDirectory();
+    }
+
+    /**
+     * Opens the store of a server directory, replaying its segments, and starts background compaction.
+     * With a threshold of 0 no new files are packed, but existing ones are still served.
+     */
+    public static PackedStore open(String serverDirectory, long threshold) throws IOException {
+        return open(serverDirectory, threshold, SEGMENT_BYTES);
+    }
+
+    static PackedStore open(String serverDirectory, long threshold, long segmentBytes) throws IOException {
+        PackedStore packedStore = new PackedStore(new File(serverDirectory + DIRECTORY_NAME), threshold, segmentBytes);
+        packedStore.recover();
+
+        packedStore.compactorThread = new Thread(packedStore::runCompactor, "packed-store-compactor");
+        packedStore.compactorThread.setDaemon(true);
+        packedStore.compactorThread.start();
+        return packedStore;
+    }
+
+    public boolean accepts(long size) {
+        return size >= 0 && size <= threshold;
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Length of a packed file, or -1 if the name is not packed.
+     */
+    public long getLength(String name) {
+        Entry entry = index.get(name);
+        return entry != null ? entry.dataLength : -1;
+    }
+
+    /**
+     * The names of all packed files, sorted.
+     */
+    public NavigableSet<String> getNames() {
+        return index.keySet();
+    }
+
+    public void put(String name, byte[] data, int length) throws IOException {
+        byte[] record = encode(PUT, name, data, length);
+        synchronized (appendLock) {
+            Segment segment = activeSegment;
+            long offset = segment.append(record);
+            Entry entry = new Entry(segment, offset, offset + record.length - length, length, record.length);
+            markDead(index.put(name, entry));
+            rollIfFull();
+        }
+    }
+
+    /**
+     * Removes a packed file. Returns false if the name was not packed.
+     */
+    public boolean remove(String name) throws IOException {
+        synchronized (appendLock) {
+            if (!index.containsKey(name)) {
+                return false;
+            }
+
+            byte[] tombstone = encode(DELETE, name, new byte[0], 0);
+            activeSegment.append(tombstone);
+            activeSegment.deadBytes.addAndGet(tombstone.length);
+            markDead(index.remove(name));
+            rollIfFull();
+            return true;
+        }
+    }
+
+    /**
+     * Removes every packed file below a folder.
+     */
+    public int removeFolder(String folder) throws IOException {
+        int removed = 0;
+        for (String separator : new String[]{"/", "\\"}) {
+            String prefix = folder + separator;
+            for (String name : new ArrayList<>(index.subMap(prefix, prefix + Character.MAX_VALUE).keySet())) {
+                if (remove(name)) {
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Reads a packed file with one positional read, or returns null if the name is not packed.
+     */
+    public byte[] read(String name) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Entry entry = index.get(name);
+            if (entry == null) {
+                return null;
+            }
+
+            byte[] data = new byte[entry.dataLength];
+            entry.segment.read(entry.dataOffset, data);
+            return data;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a packed file out to a plain file, e.g. before appending to it. The plain file is on disk
+     * before the tombstone is written, and the tombstone before this returns, so after a crash the
+     * packed copy never shadows a plain file that was appended to.
+     */
+    public void unpack(String name, File file) throws IOException {
+        byte[] data = read(name);
+        if (data == null) {
+            return;
+        }
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+            fileOutputStream.write(data);
+            fileOutputStream.getFD().sync();
+        }
+
+        remove(name);
+        sync();
+    }
+
+    /**
+     * Forces every appended record to disk. Records are not forced as they are written; callers sync
+     * before removing another copy of the data, such as a plain file or a compacted segment.
+     */
+    public void sync() throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.sync();
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    public int getEntryCount() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getTotalBytes() {
+        long totalBytes = 0;
+        for (Segment segment : segments.values()) {
+            totalBytes += segment.size;
+        }
+
+        return totalBytes;
+    }
+
+    public long getDeadBytes() {
+        long deadBytes = 0;
+        for (Segment segment : segments.values()) {
+            deadBytes += segment.deadBytes.get();
+        }
+
+        return deadBytes;
+    }
+
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * Compacts every sealed segment whose dead records take up at least half of it.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (segment != activeSegment && segment.size > 0
+                        && segment.deadBytes.get() >= segment.size * COMPACTION_DEAD_RATIO) {
+                    compact(segment);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactorThread != null) {
+            compactorThread.interrupt();
+        }
+
+        segmentLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private void runCompactor() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(COMPACTION_INTERVAL_MILLIS);
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                ServerLog.error("Packed store compaction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long movedBytes = 0;
+        boolean isOldest = segment.id == segments.firstKey();
+
+        for (long offset = 0; offset < segment.size; ) {
+            Record record = readRecord(segment, offset, segment.size);
+            if (record == null) {
+                break;
+            }
+
+            if (record.type == PUT) {
+                Entry current = index.get(record.name);
+                if (current != null && current.segment == segment && current.offset == offset) {
+                    moveLiveRecord(record, current);
+                    movedBytes += record.length;
+                }
+            } else if (!isOldest) {
+                // Older segments may still hold a put for this name; keep the tombstone until they are gone.
+                synchronized (appendLock) {
+                    if (!index.containsKey(record.name)) {
+                        activeSegment.append(record.bytes);
+                        activeSegment.deadBytes.addAndGet(record.length);
+                        movedBytes += record.length;
+                        rollIfFull();
+                    }
+                }
+            }
+
+            offset += record.length;
+        }
+
+        // The moved records and tombstones must be on disk before the segment holding the originals goes.
+        sync();
+
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+
+        if (!segment.file.delete()) {
+            ServerLog.error("Could not delete compacted segment " + segment.file);
+        }
+
+        compactions.incrementAndGet();
+        ServerLog.info("Compacted packed segment " + segment.id + ", reclaimed " + (segment.size - movedBytes) + " bytes");
+    }
+
+    private void moveLiveRecord(Record record, Entry current) throws IOException {
+        synchronized (appendLock) {
+            Segment target = activeSegment;
+            long offset = target.append(record.bytes);
+            Entry moved = new Entry(target, offset, offset + (current.dataOffset - current.offset), current.dataLength, current.recordLength);
+
+            // Overwritten or deleted meanwhile: the copy is dead on arrival.
+            if (!index.replace(record.name, current, moved)) {
+                target.deadBytes.addAndGet(record.bytes.length);
+            }
+
+            rollIfFull();
+        }
+    }
+
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName().substring("segment-".length(), file.getName().length() - ".dat".length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            long offset = 0;
+            long fileSize = segment.channel.size();
+            while (offset < fileSize) {
+                Record record = readRecord(segment, offset, fileSize);
+                if (record == null) {
+                    break;
+                }
+
+                if (record.type == PUT) {
+                    int dataLength = record.bytes.length - HEADER_BYTES - record.nameLength;
+                    markDead(index.put(record.name, new Entry(segment, offset, offset + HEADER_BYTES + record.nameLength, dataLength, record.length)));
+                } else {
+                    segment.deadBytes.addAndGet(record.length);
+                    markDead(index.remove(record.name));
+                }
+
+                offset += record.length;
+            }
+
+            if (offset < fileSize) {
+                ServerLog.error("Packed segment " + segment.id + " has a torn or corrupt record at " + offset + "; truncating");
+                segment.channel.truncate(offset);
+            }
+
+            segment.size = offset;
+        }
+
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(1);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+
+        ServerLog.info("Packed store opened: " + index.size() + " files in " + segments.size() + " segments");
+    }
+
+    private void rollIfFull() throws IOException {
+        if (activeSegment.size >= segmentBytes) {
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, String.format("segment-%08d.dat", id)));
+        segments.put(id, segment);
+        syncDirectory();
+        return segment;
+    }
+
+    /**
+     * Makes a new segment's directory entry durable, so synced records cannot vanish with their file.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on every platform, e.g. Windows.
+        }
+    }
+
+    private static void markDead(Entry entry) {
+        if (entry != null) {
+            entry.segment.deadBytes.addAndGet(entry.recordLength);
+        }
+    }
+
+    private static byte[] encode(byte type, String name, byte[] data, int length) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + nameBytes.length + length);
+        record.putInt(MAGIC).put(type).putLong(System.currentTimeMillis()).putInt(nameBytes.length).putInt(length).putInt(0);
+        record.put(nameBytes).put(data, 0, length);
+
+        byte[] bytes = record.array();
+        ByteBuffer.wrap(bytes).putInt(HEADER_BYTES - 4, checksum(bytes));
+        return bytes;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, HEADER_BYTES - 4);
+        crc32.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Reads the record at an offset, or returns null if it is incomplete or corrupt.
+     */
+    private static Record readRecord(Segment segment, long offset, long limit) throws IOException {
+        if (offset + HEADER_BYTES > limit) {
+            return null;
+        }
+
+        byte[] header = new byte[HEADER_BYTES];
+        segment.read(offset, header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int magic = headerBuffer.getInt();
+        byte type = headerBuffer.get();
+        headerBuffer.getLong();
+        int nameLength = headerBuffer.getInt();
+        int dataLength = headerBuffer.getInt();
+        int checksum = headerBuffer.getInt();
+
+        long length = (long) HEADER_BYTES + nameLength + dataLength;
+        if (magic != MAGIC || (type != PUT && type != DELETE) || nameLength < 0 || dataLength < 0
+                || dataLength > MAX_THRESHOLD || offset + length > limit) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) length];
+        segment.read(offset, bytes);
+        if (checksum(bytes) != checksum) {
+            return null;
+        }
+
+        String name = new String(bytes, HEADER_BYTES, nameLength, StandardCharsets.UTF_8);
+        return new Record(type, name, nameLength, bytes);
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicLong deadBytes;
+        private volatile long size;
+        private volatile boolean isDirty;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.deadBytes = new AtomicLong();
+            this.size = channel.size();
+        }
+
+        /**
+         * Appends a record and returns its offset. Callers hold the store's append lock.
+         */
+        private long append(byte[] record) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+
+            size = offset + record.length;
+            isDirty = true;
+            return offset;
+        }
+
+        private void sync() throws IOException {
+            // Cleared before forcing: an append that lands meanwhile marks the segment again.
+            if (isDirty) {
+                isDirty = false;
+                channel.force(false);
+            }
+        }
+
+        private void read(long offset, byte[] target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(target);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Packed segment " + id + " ends before offset " + (offset + target.length));
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Segment segment;
+        private final long offset;
+        private final long dataOffset;
+        private final int dataLength;
+        private final int recordLength;
+
+        private Entry(Segment segment, long offset, long dataOffset, int dataLength, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final String name;
+        private final int nameLength;
+        private final byte[] bytes;
+        private final int length;
+
+        private Record(byte type, String name, int nameLength, byte[] bytes) {
+            this.type = type;
+            this.name = name;
+            this.nameLength = nameLength;
+            this.bytes = bytes;
+            this.length = bytes.length;
+        }
+    }
+}
+
+enum LogLevel {
+    DEBUG,
+    INFO,
+    ERROR
+}
+
+/**
+ * Writes log lines from a background thread, so client threads never wait on console output. Lines
+ * below the level set with filesync.logLevel (INFO by default) are skipped, and lines are dropped
+ * rather than blocking when the queue is full.
+ */
+class ServerLog {
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final LogLevel level = parseLevel(System.getProperty("filesync.logLevel", "INFO"));
+    private static final BlockingQueue<LogLine> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread thread = new Thread(ServerLog::drain, "server-log");
+        thread.setDaemon(true);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush));
+    }
+
+    static LogLevel parseLevel(String name) {
+        try {
+            return LogLevel.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level '" + name + "', using INFO");
+            return LogLevel.INFO;
+        }
+    }
+
+    public static boolean isEnabled(LogLevel messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(LogLevel.INFO, message);
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message);
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void log(LogLevel messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+
+        if (!queue.offer(new LogLine(messageLevel, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                print(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void flush() {
+        LogLine line;
+        while ((line = queue.poll()) != null) {
+            print(line);
+        }
+    }
+
+    private static void print(LogLine line) {
+        if (line.level == LogLevel.ERROR) {
+            System.err.println(line.message);
+        } else {
+            System.out.println(line.message);
+        }
+    }
+
+    private static class LogLine {
+        private final LogLevel level;
+        private final String message;
+
+        private LogLine(LogLevel level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+}
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: values are bucketed by power of two with
+ * 16 linear sub-buckets each, so percentiles are accurate to within about 6% at any magnitude.
+ * Recording is a single atomic increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount;
+    private final LongAdder totalMicros;
+    private final AtomicLong maxMicros;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.totalCount = new LongAdder();
+        this.totalMicros = new LongAdder();
+        this.maxMicros = new AtomicLong();
+    }
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(getBucketIndex(micros));
+        totalCount.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public double getMeanMicros() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalMicros.sum() / count;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns the highest value that falls into the same bucket as the given percentile (0-100).
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), getMaxMicros());
+            }
+        }
+
+        return getMaxMicros();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >> shift) - SUB_BUCKET_COUNT);
+    }
+
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+/**
+ * Counts bytes in total and over a sliding window of the last {@value #WINDOW_SECONDS} seconds.
+ */
+class ThroughputCounter {
+    private static final int WINDOW_SECONDS = 10;
+    // Each slot packs the second it counts (low bits only) above the bytes counted in that second, so a
+    // slot moves to a new second and takes the first bytes of it in one compare-and-set.
+    private static final int BYTE_BITS = 40;
+    private static final long BYTE_MASK = (1L << BYTE_BITS) - 1;
+    private static final long SECOND_MASK = (1L << (Long.SIZE - BYTE_BITS)) - 1;
+    private final LongAdder total;
+    private final AtomicLongArray buckets;
+
+    public ThroughputCounter() {
+        this.total = new LongAdder();
+        this.buckets = new AtomicLongArray(WINDOW_SECONDS);
+    }
+
+    public void add(long bytes) {
+        total.add(bytes);
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % WINDOW_SECONDS);
+        long stamp = second & SECOND_MASK;
+
+        while (true) {
+            long bucket = buckets.get(slot);
+            long bucketBytes = bucket >>> BYTE_BITS == stamp ? bucket & BYTE_MASK : 0;
+            long updated = stamp << BYTE_BITS | Math.min(BYTE_MASK, bucketBytes + bytes);
+            if (buckets.compareAndSet(slot, bucket, updated)) {
+                return;
+            }
+        }
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public double getBytesPerSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        long windowBytes = 0;
+
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            long bucket = buckets.get(slot);
+            if (((second - (bucket >>> BYTE_BITS)) & SECOND_MASK) < WINDOW_SECONDS) {
+                windowBytes += bucket & BYTE_MASK;
+            }
+        }
+
+        return (double) windowBytes / WINDOW_SECONDS;
+    }
+}
+
+/**
+ * A token bucket that may run into debt: a transfer chunk is let through while any tokens are left
+ * and its full size is taken, so chunks larger than the burst cannot wait forever. Not thread-safe;
+ * guarded by the {@link TransferScheduler}.
+ */
+class TokenBucket {
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(long bytesPerSecond, long now) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = getBurst();
+        this.lastRefillNanos = now;
+    }
+
+    /**
+     * Bytes per second; 0 means unlimited.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond, long now) {
+        refill(now);
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.min(tokens, getBurst());
+    }
+
+    public boolean isAvailable(long now) {
+        refill(now);
+        return bytesPerSecond == 0 || tokens > 0;
+    }
+
+    public void take(long bytes) {
+        if (bytesPerSecond > 0) {
+            tokens -= bytes;
+        }
+    }
+
+    public long getNanosUntilAvailable(long now) {
+        if (isAvailable(now)) {
+            return 0;
+        }
+
+        return (long) Math.ceil(-tokens * 1_000_000_000.0 / bytesPerSecond) + 1;
+    }
+
+    private long getBurst() {
+        // A tenth of a second's worth keeps the achieved rate smooth over short intervals.
+        return Math.max(MIN_BURST_BYTES, bytesPerSecond / 10);
+    }
+
+    private void refill(long now) {
+        if (bytesPerSecond > 0 && now > lastRefillNanos) {
+            tokens = Math.min(getBurst(), tokens + (now - lastRefillNanos) * bytesPerSecond / 1_000_000_000.0);
+        }
+
+        lastRefillNanos = now;
+    }
+}
+
+/**
+ * Shapes file transfers. Every chunk a handler sends or receives first acquires its size here, against
+ * a global token bucket and the client's own bucket. While bytes are scarce, waiting chunks are granted
+ * in weighted fair order across clients (self-clocked fair queuing on virtual finish tags), and chunks
+ * of small files go ahead of bulk transfers. Metadata commands never pass through the scheduler.
+ * <p>
+ * A client's upload, download and attached transfer connections share one allowance, keyed by session.
+ * Limits and weights can be changed at runtime over JMX, or with the LIMIT command on servers started
+ * with an admin token.
+ */
+class TransferScheduler {
+    public static final long SMALL_TRANSFER_BYTES = 1024 * 1024;
+    private static final long MAX_WAIT_MILLIS = 50;
+    private final TokenBucket globalBucket;
+    private final Map<Integer, ClientShare> shares;
+    private final List<Request> waiting;
+    private long defaultClientBytesPerSecond;
+    private double virtualTime;
+
+    public TransferScheduler(long globalBytesPerSecond, long defaultClientBytesPerSecond) {
+        this.globalBucket = new TokenBucket(globalBytesPerSecond, System.nanoTime());
+        this.shares = new HashMap<>();
+        this.waiting = new ArrayList<>();
+        this.defaultClientBytesPerSecond = defaultClientBytesPerSecond;
+    }
+
+    public static boolean isPriority(long transferSize) {
+        return transferSize <= SMALL_TRANSFER_BYTES;
+    }
+
+    /**
+     * Blocks until the client may transfer the given number of bytes.
+     */
+    public void acquire(int clientId, boolean isPriority, long bytes) throws InterruptedIOException {
+        ClientShare share;
+        synchronized (this) {
+            share = getShare(clientId);
+            long now = System.nanoTime();
+
+            if (waiting.isEmpty() && globalBucket.isAvailable(now) && share.bucket.isAvailable(now)) {
+                grant(share, bytes, share.getFinishTag(virtualTime, bytes));
+            } else {
+                awaitTurn(new Request(share, isPriority, bytes, share.getFinishTag(virtualTime, bytes)));
+            }
+        }
+
+        share.achieved.add(bytes);
+    }
+
+    public synchronized long getGlobalLimit() {
+        return globalBucket.getBytesPerSecond();
+    }
+
+    public synchronized void setGlobalLimit(long bytesPerSecond) {
+        checkLimit(bytesPerSecond);
+        globalBucket.setBytesPerSecond(bytesPerSecond, System.nanoTime());
+        notifyAll();
+    }
+
+    public synchronized long getDefaultClientLimit() {
+        return defaultClientBytesPerSecond;
+    }
+
+    /**
+     * Sets the limit for clients that connect from now on.
+     */
+    public synchronized void setDefaultClientLimit(long bytesPerSecond) {
+        checkLimit(bytesPerSecond);
+        defaultClientBytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized void setClientLimit(int clientId, long bytesPerSecond) {
+        checkLimit(bytesPerSecond);
+        getConnectedShare(clientId).bucket.setBytesPerSecond(bytesPerSecond, System.nanoTime());
+        notifyAll();
+    }
+
+    public synchronized void setClientWeight(int clientId, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+
+        getConnectedShare(clientId).weight = weight;
+    }
+
+    /**
+     * Gives a newly connected client its share, so limits can be set before it transfers anything.
+     */
+    public synchronized void addClient(int clientId) {
+        getShare(clientId);
+    }
+
+    /**
+     * Forgets a client's share. Requests still waiting keep their reference to it and are served as usual.
+     */
+    public synchronized void removeClient(int clientId) {
+        shares.remove(clientId);
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Per-client limit, weight and achieved rate, by client id.
+     */
+    public synchronized Map<Integer, long[]> getClientStats() {
+        Map<Integer, long[]> clientStats = new TreeMap<>();
+        for (Map.Entry<Integer, ClientShare> entry : shares.entrySet()) {
+            ClientShare share = entry.getValue();
+            clientStats.put(entry.getKey(), new long[]{
+                    share.bucket.getBytesPerSecond(), share.weight, (long) share.achieved.getBytesPerSecond()
+            });
+        }
+
+        return clientStats;
+    }
+
+    private void awaitTurn(Request request) throws InterruptedIOException {
+        waiting.add(request);
+
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                Request next = selectNext(now);
+
+                long waitNanos;
+                if (next == request) {
+                    waitNanos = globalBucket.getNanosUntilAvailable(now);
+                    if (waitNanos == 0) {
+                        waiting.remove(request);
+                        grant(request.share, request.bytes, request.finishTag);
+                        notifyAll();
+                        return;
+                    }
+                } else if (next == null) {
+                    waitNanos = getNanosUntilAnyEligible(now);
+                } else {
+                    // Another request goes first; it wakes everyone when it is granted.
+                    waitNanos = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+                }
+
+                wait(Math.max(1, Math.min(MAX_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(waitNanos))));
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(request);
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * The eligible request to serve next: small transfers first, then the lowest virtual finish tag.
+     * A request is eligible while its client's bucket has tokens.
+     */
+    private Request selectNext(long now) {
+        Request next = null;
+        for (Request request : waiting) {
+            if (!request.share.bucket.isAvailable(now)) {
+                continue;
+            }
+
+            if (next == null
+                    || (request.isPriority && !next.isPriority)
+                    || (request.isPriority == next.isPriority && request.finishTag < next.finishTag)) {
+                next = request;
+            }
+        }
+
+        return next;
+    }
+
+    private long getNanosUntilAnyEligible(long now) {
+        long waitNanos = Long.MAX_VALUE;
+        for (Request request : waiting) {
+            waitNanos = Math.min(waitNanos, request.share.bucket.getNanosUntilAvailable(now));
+        }
+
+        return waitNanos;
+    }
+
+    private void grant(ClientShare share, long bytes, double finishTag) {
+        globalBucket.take(bytes);
+        share.bucket.take(bytes);
+        virtualTime = Math.max(virtualTime, finishTag - (double) bytes / share.weight);
+    }
+
+    /**
+     * The share of a connected client. Limits for other ids are refused rather than creating a share
+     * that no disconnect would ever remove.
+     */
+    private ClientShare getConnectedShare(int clientId) {
+        ClientShare share = shares.get(clientId);
+        if (share == null) {
+            throw new IllegalArgumentException("Unknown client " + clientId);
+        }
+
+        return share;
+    }
+
+    private static void checkLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+    }
+
+    private ClientShare getShare(int clientId) {
+        return shares.computeIfAbsent(clientId, k -> new ClientShare(new TokenBucket(defaultClientBytesPerSecond, System.nanoTime())));
+    }
+
+    private static class ClientShare {
+        private final TokenBucket bucket;
+        private final ThroughputCounter achieved;
+        private int weight;
+        private double lastFinishTag;
+
+        private ClientShare(TokenBucket bucket) {
+            this.bucket = bucket;
+            this.achieved = new ThroughputCounter();
+            this.weight = 1;
+        }
+
+        /**
+         * Finish tag of a new request: it starts when the client's previous request finishes or at the
+         * current virtual time, whichever is later, and takes its size divided by the weight.
+         */
+        private double getFinishTag(double virtualTime, long bytes) {
+            double finishTag = Math.max(virtualTime, lastFinishTag) + (double) bytes / weight;
+            lastFinishTag = finishTag;
+            return finishTag;
+        }
+    }
+
+    private static class Request {
+        private final ClientShare share;
+        private final boolean isPriority;
+        private final long bytes;
+        private final double finishTag;
+
+        private Request(ClientShare share, boolean isPriority, long bytes, double finishTag) {
+            this.share = share;
+            this.isPriority = isPriority;
+            this.bytes = bytes;
+            this.finishTag = finishTag;
+        }
+    }
+}
+
+class ServerMetrics {
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+            "LIST", "STACKED_CHANGES", "UPLOAD", "APPEND", "DOWNLOAD", "CREATE_FOLDER", "DELETE", "EXISTS",
+            "SESSION", "ATTACH", "REPLICATE", "REGISTER_REPLICA", "REPLICAS", "REPLICATION_LAG", "LIMIT", "STATS",
+            "DOWNLOAD_SINCE", "SEQUENCE"));
+    private final Server server;
+    private final Map<String, LatencyHistogram> commandLatencies;
+    private final ThroughputCounter bytesReceived;
+    private final ThroughputCounter bytesSent;
+    private final AtomicInteger inFlightTransfers;
+
+    public ServerMetrics(Server server) {
+        this.server = server;
+        this.commandLatencies = new ConcurrentHashMap<>();
+        this.bytesReceived = new ThroughputCounter();
+        this.bytesSent = new ThroughputCounter();
+        this.inFlightTransfers = new AtomicInteger();
+    }
+
+    public void recordCommand(String command, long nanos) {
+        String key = COMMANDS.contains(command) ? command : "UNKNOWN";
+        commandLatencies.computeIfAbsent(key, k -> new LatencyHistogram()).recordNanos(nanos);
+    }
+
+    public LatencyHistogram getCommandLatency(String command) {
+        return commandLatencies.get(command);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void transferStarted() {
+        inFlightTransfers.incrementAndGet();
+    }
+
+    public void transferFinished() {
+        inFlightTransfers.decrementAndGet();
+    }
+
+    /**
+     * All metrics by name, in a stable order. Backs both the STATS command and the JMX bean.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+
+        int connections = 0;
+        int clients = 0;
+        int replicas = 0;
+        long pendingChanges = 0;
+        long maxPendingChanges = 0;
+        for (ClientSocketObject clientSocketObject : server.getClients().values()) {
+            connections++;
+            if (clientSocketObject.isReplica()) {
+                replicas++;
+            } else if (!clientSocketObject.isAttached()) {
+                clients++;
+            }
+
+            int stackedChangeCount = clientSocketObject.getStackedChangeCount();
+            pendingChanges += stackedChangeCount;
+            maxPendingChanges = Math.max(maxPendingChanges, stackedChangeCount);
+        }
+
+        snapshot.put("clients.connected", clients);
+        snapshot.put("connections.open", connections);
+        snapshot.put("replicas.connected", replicas);
+        snapshot.put("transfers.inFlight", inFlightTransfers.get());
+        snapshot.put("bytes.received.total", bytesReceived.getTotal());
+        snapshot.put("bytes.received.perSecond", bytesReceived.getBytesPerSecond());
+        snapshot.put("bytes.sent.total", bytesSent.getTotal());
+        snapshot.put("bytes.sent.perSecond", bytesSent.getBytesPerSecond());
+        snapshot.put("stackedChanges.pending", pendingChanges);
+        snapshot.put("stackedChanges.maxPerClient", maxPendingChanges);
+        snapshot.put("replication.headSequence", server.getReplicationLog().getHeadSequence());
+        snapshot.put("replication.lagMillis", server.getReplicationLagMillis());
+        snapshot.put("log.dropped", ServerLog.getDroppedCount());
+        snapshot.put("jvm.heapUsedBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        snapshot.put("jvm.threads", ManagementFactory.getThreadMXBean().getThreadCount());
+
+        java.lang.management.OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            snapshot.put("process.cpuLoad", ((com.sun.management.OperatingSystemMXBean) operatingSystem).getProcessCpuLoad());
+        }
+
+        TransferScheduler transferScheduler = server.getTransferScheduler();
+        snapshot.put("scheduler.globalLimit", transferScheduler.getGlobalLimit());
+        snapshot.put("scheduler.clientDefaultLimit", transferScheduler.getDefaultClientLimit());
+        snapshot.put("scheduler.waiting", transferScheduler.getWaitingCount());
+        for (Map.Entry<Integer, long[]> entry : transferScheduler.getClientStats().entrySet()) {
+            String prefix = "scheduler.client." + entry.getKey() + ".";
+            snapshot.put(prefix + "limit", entry.getValue()[0]);
+            snapshot.put(prefix + "weight", entry.getValue()[1]);
+            snapshot.put(prefix + "bytesPerSecond", entry.getValue()[2]);
+        }
+
+        PackedStore packedStore = server.getPackedStore();
+        if (packedStore != null) {
+            snapshot.put("packed.entries", packedStore.getEntryCount());
+            snapshot.put("packed.segments", packedStore.getSegmentCount());
+            snapshot.put("packed.totalBytes", packedStore.getTotalBytes());
+            snapshot.put("packed.deadBytes", packedStore.getDeadBytes());
+            snapshot.put("packed.compactions", packedStore.getCompactionCount());
+        }
+
+        for (String command : new TreeSet<>(commandLatencies.keySet())) {
+            LatencyHistogram histogram = commandLatencies.get(command);
+            String prefix = "command." + command + ".";
+            snapshot.put(prefix + "count", histogram.getCount());
+            snapshot.put(prefix + "meanMicros", histogram.getMeanMicros());
+            snapshot.put(prefix + "p50Micros", histogram.getPercentileMicros(50));
+            snapshot.put(prefix + "p99Micros", histogram.getPercentileMicros(99));
+            snapshot.put(prefix + "p999Micros", histogram.getPercentileMicros(99.9));
+            snapshot.put(prefix + "maxMicros", histogram.getMaxMicros());
+        }
+
+        return snapshot;
+    }
+}
+
+/**
+ * JMX view of {@link ServerMetrics}, with operations to change the transfer limits at runtime.
+ * Dynamic, because the set of per-command and per-client attributes grows as they are first seen.
+ */
+class ServerStats implements DynamicMBean {
+    private final ServerMetrics metrics;
+    private final TransferScheduler transferScheduler;
+
+    public ServerStats(ServerMetrics metrics, TransferScheduler transferScheduler) {
+        this.metrics = metrics;
+        this.transferScheduler = transferScheduler;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> snapshot = metrics.snapshot();
+        AttributeList attributeList = new AttributeList();
+
+        for (String attribute : attributes) {
+            if (snapshot.containsKey(attribute)) {
+                attributeList.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+        }
+
+        return attributeList;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        try {
+            switch (actionName) {
+                case "setGlobalLimit":
+                    transferScheduler.setGlobalLimit((Long) params[0]);
+                    return null;
+                case "setDefaultClientLimit":
+                    transferScheduler.setDefaultClientLimit((Long) params[0]);
+                    return null;
+                case "setClientLimit":
+                    transferScheduler.setClientLimit((Integer) params[0], (Long) params[1]);
+                    return null;
+                case "setClientWeight":
+                    transferScheduler.setClientWeight((Integer) params[0], (Integer) params[1]);
+                    return null;
+                default:
+                    throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+        } catch (IllegalArgumentException | ClassCastException | ArrayIndexOutOfBoundsException e) {
+            throw new MBeanException(e, "Invalid arguments for " + actionName);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : metrics.snapshot().entrySet()) {
+            attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+        }
+
+        MBeanParameterInfo bytesPerSecond = new MBeanParameterInfo("bytesPerSecond", "long", "Limit, 0 for unlimited");
+        MBeanParameterInfo clientId = new MBeanParameterInfo("clientId", "int", "Client id");
+        MBeanOperationInfo[] operationInfos = {
+                new MBeanOperationInfo("setGlobalLimit", "Sets the global transfer limit",
+                        new MBeanParameterInfo[]{bytesPerSecond}, "void", MBeanOperationInfo.ACTION),
+                new MBeanOperationInfo("setDefaultClientLimit", "Sets the limit of clients that connect from now on",
+                        new MBeanParameterInfo[]{bytesPerSecond}, "void", MBeanOperationInfo.ACTION),
+                new MBeanOperationInfo("setClientLimit", "Sets one client's transfer limit",
+                        new MBeanParameterInfo[]{clientId, bytesPerSecond}, "void", MBeanOperationInfo.ACTION),
+                new MBeanOperationInfo("setClientWeight", "Sets one client's fair queuing weight",
+                        new MBeanParameterInfo[]{clientId, new MBeanParameterInfo("weight", "int", "Weight, at least 1")}, "void", MBeanOperationInfo.ACTION)
+        };
+
+        return new MBeanInfo(ServerStats.class.getName(), "FileSyncTM server metrics",
+                attributeInfos.toArray(new MBeanAttributeInfo[0]), null, operationInfos, null);
+    }
+}
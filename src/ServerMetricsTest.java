@@ -0,0 +1,79 @@
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerMetricsTest {
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            assertTrue(LatencyHistogram.getBucketUpperBound(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.getBucketUpperBound(index - 1) < value);
+        }
+
+        assertTrue(LatencyHistogram.getBucketIndex(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertEquals(500.5, histogram.getMeanMicros(), 0.001);
+
+        long p50 = histogram.getPercentileMicros(50);
+        long p99 = histogram.getPercentileMicros(99);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.07, "p50 was " + p50);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 was " + p99);
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+
+    @Test
+    public void testThroughputCounter() {
+        ThroughputCounter throughputCounter = new ThroughputCounter();
+        throughputCounter.add(1000);
+        throughputCounter.add(500);
+
+        assertEquals(1500, throughputCounter.getTotal());
+        assertEquals(150.0, throughputCounter.getBytesPerSecond(), 0.001);
+    }
+
+    @Test
+    public void testThroughputCounterKeepsConcurrentAdds() throws InterruptedException {
+        ThroughputCounter throughputCounter = new ThroughputCounter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    throughputCounter.add(1);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400_000, throughputCounter.getTotal());
+        assertEquals(40_000.0, throughputCounter.getBytesPerSecond(), 0.001);
+    }
+
+    @Test
+    public void testUnknownLogLevelFallsBackToInfo() {
+        assertEquals(LogLevel.DEBUG, ServerLog.parseLevel("debug"));
+        assertEquals(LogLevel.INFO, ServerLog.parseLevel("verbose"));
+    }
+}
@@ -0,0 +1,208 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TailStateTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final String LOG_FILENAME = "app.log";
+    private File serverDirectory;
+    private File clientDirectory;
+    private Server server;
+    private Socket socket;
+    private ServerThread serverThread;
+
+    @Before
+    public void setUp() throws Exception {
+        serverDirectory = Files.createTempDirectory("tail-state-test-server").toFile();
+        clientDirectory = Files.createTempDirectory("tail-state-test-client").toFile();
+
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        server = new Server(port);
+        Thread thread = new Thread(() -> server.start(serverDirectory.getPath() + File.separator));
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (socket == null) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(50);
+            }
+        }
+
+        System.setProperty("filesync.tailPatterns", "*.log");
+        try {
+            serverThread = new ServerThread(socket, clientDirectory.getPath() + File.separator);
+        } finally {
+            System.clearProperty("filesync.tailPatterns");
+        }
+
+        serverThread.startPipeline();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverThread.stopPipeline();
+        socket.close();
+        server.stop();
+        delete(serverDirectory);
+        delete(clientDirectory);
+    }
+
+    @Test
+    public void testFingerprintMatchesAppendedFile() throws IOException {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        write(file, "first\n", false);
+        TailState tailState = TailState.of(file, file.length());
+
+        write(file, "second\n", true);
+        assertEquals(6, tailState.getOffset());
+        assertTrue(tailState.matches(file));
+
+        write(file, "FIRST\nsecond\n", false);
+        assertFalse(tailState.matches(file));
+    }
+
+    @Test
+    public void testAppendShipsOnlyNewBytes() throws Exception {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        write(file, "first\n", false);
+        scanAndAwait(1, "first\n");
+        assertEquals(1, getCommandCount("UPLOAD"));
+
+        write(file, "second\n", true);
+        scanAndAwait(2, "first\nsecond\n");
+        assertEquals(1, getCommandCount("UPLOAD"));
+        assertEquals(1, getCommandCount("APPEND"));
+    }
+
+    @Test
+    public void testRewriteFallsBackToFullUpload() throws Exception {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        write(file, "first\n", false);
+        scanAndAwait(1, "first\n");
+
+        // Longer than before, but the bytes the server has were changed.
+        write(file, "FIRST\nsecond\n", false);
+        scanAndAwait(2, "FIRST\nsecond\n");
+        assertEquals(2, getCommandCount("UPLOAD"));
+        assertEquals(0, getCommandCount("APPEND"));
+    }
+
+    @Test
+    public void testTruncationFallsBackToFullUpload() throws Exception {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        write(file, "first\nsecond\n", false);
+        scanAndAwait(1, "first\nsecond\n");
+
+        write(file, "new\n", false);
+        scanAndAwait(2, "new\n");
+        assertEquals(2, getCommandCount("UPLOAD"));
+        assertEquals(0, getCommandCount("APPEND"));
+    }
+
+    @Test
+    public void testBrokenOffAppendIsUndone() throws Exception {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        write(file, "first\n", false);
+        scanAndAwait(1, "first\n");
+        long headSequence = server.getReplicationLog().getHeadSequence();
+
+        try (Socket appendSocket = new Socket("localhost", socket.getPort())) {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(appendSocket.getOutputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(appendSocket.getInputStream());
+            objectOutputStream.writeObject("APPEND");
+            objectOutputStream.writeObject(LOG_FILENAME);
+            objectOutputStream.writeLong(6);
+            objectOutputStream.writeLong(100);
+            objectOutputStream.write("partial".getBytes(StandardCharsets.UTF_8));
+            objectOutputStream.flush();
+            appendSocket.shutdownOutput();
+
+            assertFalse(objectInputStream.readBoolean());
+        }
+
+        assertEquals("first\n", read(new File(serverDirectory, LOG_FILENAME)));
+        assertEquals(headSequence, server.getReplicationLog().getHeadSequence());
+    }
+
+    /**
+     * Runs one scan and waits until the upload workers have handled the given total number of uploads,
+     * the server holds the expected content and has counted the commands.
+     */
+    private void scanAndAwait(long uploadsHandled, String expectedContent) throws Exception {
+        File file = new File(clientDirectory, LOG_FILENAME);
+        file.setLastModified(System.currentTimeMillis() - 1000 + uploadsHandled * 100);
+        serverThread.checkForChanges();
+
+        File serverFile = new File(serverDirectory, LOG_FILENAME);
+        awaitTrue(() -> getUploadsHandled() >= uploadsHandled);
+        awaitTrue(() -> serverFile.isFile() && expectedContent.equals(read(serverFile)));
+        awaitTrue(() -> getCommandCount("UPLOAD") + getCommandCount("APPEND") >= uploadsHandled);
+        assertEquals(uploadsHandled, getUploadsHandled());
+    }
+
+    private long getUploadsHandled() {
+        long handled = 0;
+        for (PipelineStage<?> stage : serverThread.getPipelineStages()) {
+            if (stage.getName().endsWith("uploads")) {
+                handled += stage.getCompleted() + stage.getFailed();
+            }
+        }
+
+        return handled;
+    }
+
+    private long getCommandCount(String command) {
+        Object count = server.getMetrics().snapshot().get("command." + command + ".count");
+        return count == null ? 0 : ((Number) count).longValue();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    private static void write(File file, String content, boolean append) throws IOException {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file, append)) {
+            fileOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String read(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
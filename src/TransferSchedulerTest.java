@@ -0,0 +1,234 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransferSchedulerTest {
+    @Test
+    public void testTokenBucketRunsIntoDebt() {
+        TokenBucket tokenBucket = new TokenBucket(1_000_000, 0);
+        assertTrue(tokenBucket.isAvailable(0));
+
+        // The burst is a tenth of a second's worth; taking 200 KB leaves a debt of 100 KB, or 100 ms.
+        tokenBucket.take(200_000);
+        assertFalse(tokenBucket.isAvailable(0));
+        long waitNanos = tokenBucket.getNanosUntilAvailable(0);
+        assertTrue(waitNanos > 99_000_000 && waitNanos < 101_000_000, "waited " + waitNanos);
+        assertTrue(tokenBucket.isAvailable(waitNanos));
+    }
+
+    @Test
+    public void testUnlimitedBucket() {
+        TokenBucket tokenBucket = new TokenBucket(0, 0);
+        tokenBucket.take(Long.MAX_VALUE);
+
+        assertTrue(tokenBucket.isAvailable(0));
+        assertEquals(0, tokenBucket.getNanosUntilAvailable(0));
+    }
+
+    @Test
+    public void testGlobalLimit() throws Exception {
+        TransferScheduler transferScheduler = new TransferScheduler(1_000_000, 0);
+
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            transferScheduler.acquire(1, false, 64 * 1024);
+        }
+
+        // 640 KB at 1 MB/s, less the 100 KB burst.
+        long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        assertTrue(elapsedMillis >= 450, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    public void testSmallTransfersGoFirst() throws Exception {
+        TransferScheduler transferScheduler = new TransferScheduler(1_000_000, 0);
+        transferScheduler.acquire(1, false, 300_000);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread bulk = new Thread(() -> acquire(transferScheduler, 1, false, order, "bulk"));
+        bulk.start();
+        Thread.sleep(50);
+        Thread small = new Thread(() -> acquire(transferScheduler, 2, true, order, "small"));
+        small.start();
+
+        bulk.join();
+        small.join();
+        assertEquals(List.of("small", "bulk"), order);
+    }
+
+    @Test
+    public void testClientLimitIsAdjustable() throws Exception {
+        TransferScheduler transferScheduler = new TransferScheduler(0, 0);
+        transferScheduler.addClient(3);
+        transferScheduler.setClientLimit(3, 500_000);
+        transferScheduler.setClientWeight(3, 2);
+
+        assertEquals(500_000, transferScheduler.getClientStats().get(3)[0]);
+        assertEquals(2, transferScheduler.getClientStats().get(3)[1]);
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setClientWeight(3, 0));
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setClientLimit(3, -1));
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setGlobalLimit(-1));
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setDefaultClientLimit(-1));
+
+        // Ids without a connection are refused instead of getting a share nothing would remove.
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setClientLimit(4, 500_000));
+        assertThrows(IllegalArgumentException.class, () -> transferScheduler.setClientWeight(4, 2));
+        assertFalse(transferScheduler.getClientStats().containsKey(4));
+
+        transferScheduler.acquire(3, false, 200_000);
+        transferScheduler.setClientLimit(3, 0);
+
+        long startedAt = System.nanoTime();
+        transferScheduler.acquire(3, false, 200_000);
+        assertTrue(System.nanoTime() - startedAt < 50_000_000);
+    }
+
+    @Test
+    public void testRemovedClientWaiterIsStillServed() throws Exception {
+        TransferScheduler transferScheduler = new TransferScheduler(1_000_000, 0);
+        transferScheduler.acquire(1, false, 300_000);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread waiter = new Thread(() -> acquire(transferScheduler, 1, false, order, "waiter"));
+        waiter.start();
+        Thread.sleep(50);
+
+        transferScheduler.removeClient(1);
+        assertFalse(transferScheduler.getClientStats().containsKey(1));
+
+        waiter.join(5000);
+        assertEquals(List.of("waiter"), order);
+    }
+
+    @Test
+    public void testShareGoesWithLastConnectionOfSession() throws Exception {
+        File serverDirectory = Files.createTempDirectory("transfer-scheduler-test").toFile();
+        int port = getFreePort();
+        Server server = startServer(port, serverDirectory);
+
+        try {
+            Socket mainSocket = connect(port);
+            ObjectOutputStream mainOutputStream = new ObjectOutputStream(mainSocket.getOutputStream());
+            ObjectInputStream mainInputStream = new ObjectInputStream(mainSocket.getInputStream());
+            mainOutputStream.writeObject("SESSION");
+            mainOutputStream.writeObject("");
+            mainOutputStream.flush();
+            int sessionId = mainInputStream.readInt();
+
+            // A transfer connection attached to the session uploads; it gives up the share of its own id.
+            Socket transferSocket = connect(port);
+            ObjectOutputStream transferOutputStream = new ObjectOutputStream(transferSocket.getOutputStream());
+            ObjectInputStream transferInputStream = new ObjectInputStream(transferSocket.getInputStream());
+            transferOutputStream.writeObject("ATTACH");
+            transferOutputStream.writeObject(String.valueOf(sessionId));
+            transferOutputStream.writeObject("UPLOAD");
+            transferOutputStream.writeObject("a.txt");
+            transferOutputStream.writeLong(1);
+            transferOutputStream.write('a');
+            transferOutputStream.flush();
+            assertTrue(transferInputStream.readBoolean());
+            assertEquals(Set.of(sessionId), server.getTransferScheduler().getClientStats().keySet());
+
+            // The session outlives the connection whose id it carries while its transfer connection is open.
+            mainSocket.close();
+            awaitClientCount(server, 1);
+            assertTrue(server.getTransferScheduler().getClientStats().containsKey(sessionId));
+
+            transferSocket.close();
+            awaitClientCount(server, 0);
+            assertFalse(server.getTransferScheduler().getClientStats().containsKey(sessionId));
+        } finally {
+            server.stop();
+            new File(serverDirectory, "a.txt").delete();
+            serverDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testLimitNeedsAdminToken() throws Exception {
+        File serverDirectory = Files.createTempDirectory("transfer-scheduler-test").toFile();
+        int port = getFreePort();
+        Server server = startServer(port, serverDirectory);
+
+        try (Socket socket = connect(port)) {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
+
+            // Refused outright while the server has no token.
+            assertFalse(sendLimit(objectOutputStream, objectInputStream, "global 1000"));
+
+            server.setAdminToken("secret");
+            assertFalse(sendLimit(objectOutputStream, objectInputStream, "global 1000"));
+            assertFalse(sendLimit(objectOutputStream, objectInputStream, "wrong global 1000"));
+            assertEquals(0, server.getTransferScheduler().getGlobalLimit());
+
+            assertTrue(sendLimit(objectOutputStream, objectInputStream, "secret global 1000"));
+            assertEquals(1000, server.getTransferScheduler().getGlobalLimit());
+        } finally {
+            server.stop();
+            serverDirectory.delete();
+        }
+    }
+
+    private static boolean sendLimit(ObjectOutputStream objectOutputStream, ObjectInputStream objectInputStream, String argument) throws IOException {
+        objectOutputStream.writeObject("LIMIT");
+        objectOutputStream.writeObject(argument);
+        objectOutputStream.flush();
+        return objectInputStream.readBoolean();
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static Server startServer(int port, File serverDirectory) {
+        Server server = new Server(port);
+        Thread thread = new Thread(() -> server.start(serverDirectory.getPath() + File.separator));
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private static Socket connect(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "server did not start");
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void awaitClientCount(Server server, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getClients().size() != count) {
+            assertTrue(System.currentTimeMillis() < deadline, "clients " + server.getClients().size());
+            Thread.sleep(20);
+        }
+    }
+
+    private static void acquire(TransferScheduler transferScheduler, int clientId, boolean isPriority, List<String> order, String name) {
+        try {
+            transferScheduler.acquire(clientId, isPriority, 50_000);
+            order.add(name);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}